@@ -0,0 +1,30 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponentially growing delays between attempts, with random jitter so that parallel callers spread out.
+ */
+final class Backoff {
+    private final long max;
+    private long next;
+
+    /**
+     * @param initial delay before the second attempt, in milliseconds
+     * @param max     longest delay, in milliseconds
+     */
+    Backoff(long initial, long max) {
+        this.next = initial;
+        this.max = max;
+    }
+
+    /**
+     * Gets the delay before the next attempt, in milliseconds: between half and all of the current delay,
+     * which doubles every time until it reaches the maximum.
+     */
+    long nextDelay() {
+        long delay = next;
+        next = Math.min(next * 2, max);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -0,0 +1,249 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Files making up the {@code docker build} context of a fixture.
+ * <p>
+ * The context is either packaged into a jar file next to the fixture class, or lives in a directory on the classpath.
+ * It must be closed once its entries are no longer read.
+ */
+abstract class BuildContext implements Closeable {
+
+    /**
+     * Lists all the files in this context, ordered by their relative path.
+     * Directories are not listed, so empty ones are not part of the context.
+     */
+    abstract List<Entry> entries() throws IOException;
+
+    /**
+     * Copies the context into the given directory.
+     */
+    abstract void copyTo(File dir) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Reads the {@code Dockerfile} at the root of this context.
+     */
+    byte[] readDockerfile() throws IOException {
+        for (Entry e : entries()) {
+            if (e.path.equals("Dockerfile")) {
+                try (InputStream in = e.open()) {
+                    return IOUtils.toByteArray(in);
+                }
+            }
+        }
+        throw new IOException("No Dockerfile found in " + this);
+    }
+
+    /**
+     * Locates the build context of a fixture.
+     *
+     * @param fixture            the fixture class, used to find the jar it is packaged in
+     * @param dockerfileLocation the resource path of the directory containing the Dockerfile, such as {@code org/acme/FooContainer}
+     * @param classLoader        the class loader used to look up the context when it is not packaged
+     */
+    static BuildContext of(Class<? extends DockerContainer> fixture, String dockerfileLocation, ClassLoader classLoader) throws IOException {
+        File jar = null;
+        try {
+            jar = Which.jarFile(fixture);
+        } catch (IllegalArgumentException e) {
+            // fall through
+        }
+
+        if (jar != null && jar.isFile()) {
+            // files are packaged into a jar/war
+            return new Packaged(jar, dockerfileLocation + "/");
+        }
+        // Dockerfile is not packaged into a jar file
+        URL resourceDir = classLoader.getResource(dockerfileLocation);
+        if (resourceDir == null) throw new Error("The fixture directory does not exist: " + dockerfileLocation);
+        File dir;
+        try {
+            dir = new File(resourceDir.toURI());
+        } catch (URISyntaxException e) {
+            dir = new File(resourceDir.getPath());
+        }
+        return new Directory(dir);
+    }
+
+    /**
+     * A single file in the build context.
+     */
+    abstract static class Entry {
+        /**
+         * Path relative to the root of the context, separated by {@code /}.
+         */
+        final String path;
+        final long size;
+        final long lastModified;
+        /**
+         * Identifies where the content comes from, for example an absolute file path.
+         */
+        final String source;
+
+        Entry(String path, long size, long lastModified, String source) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.source = source;
+        }
+
+        abstract InputStream open() throws IOException;
+
+        /**
+         * Unix permissions of the file.
+         */
+        int mode() {
+            return 0644;
+        }
+
+        @Override
+        public String toString() {
+            return source;
+        }
+    }
+
+    /**
+     * Context in a directory on the file system.
+     */
+    static final class Directory extends BuildContext {
+        private final File root;
+
+        Directory(File root) {
+            this.root = root;
+        }
+
+        @Override
+        List<Entry> entries() throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            collect(root, "", entries);
+            entries.sort(Comparator.comparing(e -> e.path));
+            return entries;
+        }
+
+        private static void collect(File dir, String prefix, List<Entry> entries) throws IOException {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                throw new IOException("Failed to list " + dir);
+            }
+            for (File f : children) {
+                if (f.isDirectory()) {
+                    collect(f, prefix + f.getName() + "/", entries);
+                } else {
+                    entries.add(new Entry(prefix + f.getName(), f.length(), f.lastModified(), f.getAbsolutePath()) {
+                        @Override
+                        InputStream open() throws IOException {
+                            return new FileInputStream(f);
+                        }
+
+                        @Override
+                        int mode() {
+                            return f.canExecute() ? 0755 : 0644;
+                        }
+                    });
+                }
+            }
+        }
+
+        @Override
+        void copyTo(File dir) throws IOException {
+            FileUtils.copyDirectory(root, dir);
+        }
+
+        @Override
+        public String toString() {
+            return root.toString();
+        }
+    }
+
+    /**
+     * Context packaged into a jar file, under a given prefix.
+     */
+    static final class Packaged extends BuildContext {
+        private final File jar;
+        private final String prefix;
+        /**
+         * Opened on first read, closed with this context.
+         */
+        private JarFile jarFile;
+
+        Packaged(File jar, String prefix) {
+            this.jar = jar;
+            this.prefix = prefix;
+        }
+
+        @Override
+        List<Entry> entries() throws IOException {
+            JarIndex index = JarIndex.of(jar);
+            // entries of a modified jar may keep their timestamps, so rely on the jar itself
+            long lastModified = index.getLastModified();
+            List<Entry> entries = new ArrayList<>();
+            for (JarEntry je : index.entriesUnder(prefix).values()) {
+                if (!je.isDirectory()) {
+                    String name = je.getName();
+                    entries.add(new Entry(name.substring(prefix.length()), je.getSize(), lastModified, jar.getAbsolutePath() + "!/" + name) {
+                        @Override
+                        InputStream open() throws IOException {
+                            return jarFile().getInputStream(je);
+                        }
+                    });
+                }
+            }
+            // the index is sorted by name already
+            return entries;
+        }
+
+        @Override
+        void copyTo(File outputDirectory) throws IOException {
+            JarIndex index = JarIndex.of(jar);
+            for (JarEntry je : index.entriesUnder(prefix).values()) {
+                File dst = new File(outputDirectory, je.getName().substring(prefix.length()));
+                if (je.isDirectory()) {
+                    dst.mkdirs();
+                } else {
+                    try (InputStream in = jarFile().getInputStream(je)) {
+                        FileUtils.copyInputStreamToFile(in, dst);
+                    }
+                }
+            }
+        }
+
+        private synchronized JarFile jarFile() throws IOException {
+            if (jarFile == null) {
+                jarFile = new JarFile(jar);
+            }
+            return jarFile;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (jarFile != null) {
+                jarFile.close();
+                jarFile = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return jar + "!/" + prefix;
+        }
+    }
+}
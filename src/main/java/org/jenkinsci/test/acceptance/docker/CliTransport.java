@@ -0,0 +1,75 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jenkinsci.utils.process.CommandBuilder;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+
+/**
+ * {@link DockerTransport} forking the {@code docker} command for every request.
+ */
+final class CliTransport implements DockerTransport {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    public boolean ping() {
+        try {
+            Process p = Docker.cmd("ps").build()
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            return Deadline.waitFor(p, timeout(), "docker ps") == 0;
+        } catch (InterruptedException | IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public JsonNode inspectContainer(String cid) throws IOException, InterruptedException {
+        return inspect(Docker.cmd("container", "inspect").add(cid));
+    }
+
+    @Override
+    public JsonNode inspectImage(String tag) throws IOException, InterruptedException {
+        return inspect(Docker.cmd("image", "inspect").add(tag));
+    }
+
+    private static JsonNode inspect(CommandBuilder cmd) throws IOException, InterruptedException {
+        Process p = cmd.build().redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        String out = Deadline.output(p, timeout(), cmd);
+        if (p.exitValue() != 0) {
+            return null;
+        }
+        return MAPPER.readTree(out).get(0);
+    }
+
+    @Override
+    public void kill(String cid) throws IOException, InterruptedException {
+        Deadline.run(Docker.cmd("kill").add(cid), timeout(), "Failed to kill " + cid);
+    }
+
+    @Override
+    public void remove(String cid) throws IOException, InterruptedException {
+        Deadline.run(Docker.cmd("rm").add(cid), timeout(), "Failed to rm " + cid);
+    }
+
+    @Override
+    public void removeAll(Collection<String> cids) throws IOException, InterruptedException {
+        if (!cids.isEmpty()) {
+            Deadline.run(Docker.cmd("rm", "-f").add(cids), timeout(), "Failed to rm " + cids);
+        }
+    }
+
+    private static Duration timeout() {
+        return Duration.ofSeconds(Docker.REQUEST_TIMEOUT);
+    }
+
+    @Override
+    public String toString() {
+        return "docker command";
+    }
+}
@@ -0,0 +1,158 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Containers started in the background ahead of time, so that they can be handed out without waiting for them to start.
+ * <p>
+ * Every container taken from the pool is replaced right away. When the pool has not been used for a while,
+ * its containers are closed, and it is only filled again on next use.
+ * Containers which stopped while in the pool are replaced when taken.
+ */
+final class ContainerPool<T extends DockerContainer> implements Closeable {
+    private final Callable<T> starter;
+    private final int size;
+    private final long idleTimeout;
+    private final ExecutorService executor;
+    /**
+     * Separate from the threads starting containers, so that evicting never waits behind a start.
+     */
+    private final ScheduledExecutorService evictor;
+    private final Deque<CompletableFuture<T>> pool = new ArrayDeque<>();
+    private long lastUsed;
+    private boolean closed;
+
+    /**
+     * Starts filling the pool.
+     *
+     * @param starter     starts a container, waiting until it is ready
+     * @param size        number of containers to keep started
+     * @param idleTimeout how long to keep the containers when the pool is not used
+     */
+    ContainerPool(Callable<T> starter, int size, Duration idleTimeout) {
+        this.starter = starter;
+        this.size = size;
+        this.idleTimeout = idleTimeout.toNanos();
+        executor = Executors.newFixedThreadPool(size, new NamedThreadFactory("pool"));
+        evictor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pool-evict"));
+        long period = Math.max(idleTimeout.toMillis() / 4, 10);
+        evictor.scheduleWithFixedDelay(this::evictIfIdle, period, period, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            lastUsed = System.nanoTime();
+            fill();
+        }
+    }
+
+    private synchronized void fill() {
+        while (!closed && pool.size() < size) {
+            pool.add(Docker.supplyAsync(starter, executor));
+        }
+    }
+
+    /**
+     * Takes a container out of the pool, waiting for it to be started if needed, and starts another one in its place.
+     * A container which stopped in the meantime is closed and the next one is taken instead.
+     */
+    T take() throws IOException, InterruptedException {
+        for (int attempt = 0; attempt <= size; attempt++) {
+            CompletableFuture<T> next;
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The pool is closed");
+                }
+                lastUsed = System.nanoTime();
+                fill();
+                next = pool.poll();
+                fill();
+            }
+            T c;
+            try {
+                c = next.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to start a container of the pool", e.getCause());
+            }
+            try {
+                c.assertRunning();
+                return c;
+            } catch (Error e) {
+                LOGGER.log(Level.WARNING, c + " stopped while in the pool, replacing it", e);
+                close(c);
+            }
+        }
+        throw new IOException("The containers of the pool keep stopping");
+    }
+
+    private void evictIfIdle() {
+        List<CompletableFuture<T>> idle;
+        synchronized (this) {
+            if (closed || pool.isEmpty() || System.nanoTime() - lastUsed < idleTimeout) {
+                return;
+            }
+            idle = new ArrayList<>(pool);
+            pool.clear();
+        }
+        LOGGER.fine(() -> "Closing " + idle.size() + " idle containers");
+        idle.forEach(ContainerPool::discard);
+    }
+
+    /**
+     * Closes all containers still in the pool, waiting for those being started.
+     */
+    @Override
+    public void close() {
+        List<CompletableFuture<T>> leftovers;
+        synchronized (this) {
+            closed = true;
+            leftovers = new ArrayList<>(pool);
+            pool.clear();
+        }
+        evictor.shutdownNow();
+        executor.shutdown();
+        CompletableFuture<?>[] discarded = leftovers.stream().map(ContainerPool::discard).toArray(CompletableFuture<?>[]::new);
+        try {
+            CompletableFuture.allOf(discarded).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // failures are logged by discard
+        }
+    }
+
+    /**
+     * Closes a container once started, without waiting for it.
+     */
+    private static CompletableFuture<Void> discard(CompletableFuture<? extends DockerContainer> f) {
+        return f.handle((c, failure) -> {
+            // one which never started needs no clean up
+            if (c != null) {
+                close(c);
+            }
+            return null;
+        });
+    }
+
+    private static void close(DockerContainer c) {
+        try {
+            c.close();
+        } catch (RuntimeException | Error e) {
+            LOGGER.log(Level.WARNING, "Failed to close a pooled container", e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerPool.class.getName());
+}
@@ -0,0 +1,128 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the details of a container, as reported by {@code docker inspect} at some point in time.
+ * <p>
+ * Published ports and IP addresses do not change while a container runs,
+ * so a snapshot taken after starting the container can answer all lookups without asking the daemon again.
+ *
+ * @see DockerContainer#getState()
+ * @see DockerContainer#refresh()
+ */
+public final class ContainerState {
+    private final JsonNode details;
+    private final Map<String, List<PortBinding>> ports;
+
+    public ContainerState(JsonNode details) {
+        this.details = details;
+        Map<String, List<PortBinding>> ports = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> it = details.path("NetworkSettings").path("Ports").fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> e = it.next();
+            List<PortBinding> bindings = new ArrayList<>();
+            // null for ports which are exposed but not published
+            for (JsonNode b : e.getValue()) {
+                bindings.add(new PortBinding(b.path("HostIp").asText(), b.path("HostPort").asInt()));
+            }
+            ports.put(e.getKey(), Collections.unmodifiableList(bindings));
+        }
+        this.ports = Collections.unmodifiableMap(ports);
+    }
+
+    /**
+     * Full output of {@code docker inspect}.
+     */
+    public JsonNode getDetails() {
+        return details;
+    }
+
+    /**
+     * Status of the container, such as {@code running} or {@code exited}.
+     */
+    public String getStatus() {
+        return details.path("State").path("Status").asText();
+    }
+
+    public boolean isRunning() {
+        JsonNode state = details.path("State");
+        return "running".equals(state.path("Status").asText()) || state.path("Running").asBoolean();
+    }
+
+    /**
+     * Ports of the container, such as {@code 22/tcp}, with where they are published on the host.
+     */
+    public Map<String, List<PortBinding>> getPorts() {
+        return ports;
+    }
+
+    /**
+     * Finds where a port of the container is published on the host.
+     *
+     * @param protocol {@code tcp} or {@code udp}
+     * @param ipv6     whether to prefer a binding to an IPv6 address, if the port is published on several addresses
+     * @return null if the port is not published
+     */
+    public /*@CheckForNull*/ PortBinding getPortBinding(int port, String protocol, boolean ipv6) {
+        List<PortBinding> bindings = ports.get(port + "/" + protocol);
+        if (bindings == null || bindings.isEmpty()) {
+            return null;
+        }
+        for (PortBinding b : bindings) {
+            if (b.hostIp.contains(":") == ipv6) {
+                return b;
+            }
+        }
+        return bindings.get(0);
+    }
+
+    /**
+     * IP address of the container.
+     *
+     * @param network the network to look the address up in, or null for the default bridge
+     * @param ipv6    whether to get the global IPv6 address rather than the IPv4 one
+     * @return null if the container is not attached to that network
+     */
+    public /*@CheckForNull*/ String getIpAddress(/*@CheckForNull*/ String network, boolean ipv6) {
+        JsonNode settings = details.path("NetworkSettings");
+        if (network != null) {
+            settings = settings.path("Networks").path(network);
+        }
+        JsonNode ip = settings.path(ipv6 ? "GlobalIPv6Address" : "IPAddress");
+        return ip.isTextual() ? ip.asText() : null;
+    }
+
+    @Override
+    public String toString() {
+        return details.path("State").toString();
+    }
+
+    /**
+     * Address and port on the host a port of the container is published to.
+     */
+    public static final class PortBinding {
+        /**
+         * Such as {@code 0.0.0.0} or {@code ::}.
+         */
+        public final String hostIp;
+        public final int hostPort;
+
+        public PortBinding(String hostIp, int hostPort) {
+            this.hostIp = hostIp;
+            this.hostPort = hostPort;
+        }
+
+        @Override
+        public String toString() {
+            return (hostIp.contains(":") ? "[" + hostIp + "]" : hostIp) + ":" + hostPort;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Computes content digests of {@link BuildContext}s.
+ * <p>
+ * The SHA-1 of every file is remembered in a properties file, keyed by the file location and validated by its size and
+ * modification time, so that subsequent runs only need to read the files which actually changed.
+ * JVMs sharing the file merge their records into it rather than overwriting each other's.
+ */
+final class ContextHashIndex {
+
+    private static final Map<File, ContextHashIndex> INSTANCES = new HashMap<>();
+
+    /**
+     * How long to wait for another JVM saving the index, in milliseconds.
+     */
+    private static final long LOCK_TIMEOUT = 30_000;
+
+    private final File file;
+    private Map<String, Record> records;
+    /**
+     * Records computed since the index was last saved.
+     */
+    private final Map<String, Record> updated = new HashMap<>();
+
+    ContextHashIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the index stored in the given cache directory, shared by all callers in this JVM.
+     */
+    static synchronized ContextHashIndex in(File cacheDir) {
+        return INSTANCES.computeIfAbsent(cacheDir, d -> new ContextHashIndex(new File(d, "context-hashes.properties")));
+    }
+
+    /**
+     * Computes the digest of a build context.
+     *
+     * @param context      the context to digest, in the order of {@link BuildContext#entries()}
+     * @param dockerfile   the content of the {@code Dockerfile} to use in place of the one in the context, as it may have been processed
+     * @param parentDigest digest of the context of the parent fixture, or null if there is none
+     * @return a hex encoded SHA-1 covering the path, permissions and content of every file
+     */
+    synchronized String digest(BuildContext context, byte[] dockerfile, /*@CheckForNull*/ String parentDigest) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        if (parentDigest != null) {
+            manifest.append("parent ").append(parentDigest).append('\n');
+        }
+        for (BuildContext.Entry e : context.entries()) {
+            String sha1 = e.path.equals("Dockerfile")
+                    ? new SHA1Sum(new ByteArrayInputStream(dockerfile)).getSha1String()
+                    : sha1(e);
+            // the executable bit is sent along, and changes what the image runs
+            manifest.append(sha1).append(' ').append(Integer.toOctalString(e.mode())).append(' ').append(e.path).append('\n');
+        }
+        save();
+        return new SHA1Sum(new ByteArrayInputStream(manifest.toString().getBytes(StandardCharsets.UTF_8))).getSha1String();
+    }
+
+    private String sha1(BuildContext.Entry e) throws IOException {
+        load();
+        Record r = records.get(e.source);
+        if (r != null && r.size == e.size && r.lastModified == e.lastModified) {
+            return r.sha1;
+        }
+        String sha1;
+        try (InputStream in = e.open()) {
+            sha1 = new SHA1Sum(in).getSha1String();
+        }
+        Record computed = new Record(e.size, e.lastModified, sha1);
+        records.put(e.source, computed);
+        updated.put(e.source, computed);
+        return sha1;
+    }
+
+    private void load() {
+        if (records != null) {
+            return;
+        }
+        records = read();
+    }
+
+    private Map<String, Record> read() {
+        Map<String, Record> read = new HashMap<>();
+        if (!file.isFile()) {
+            return read;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable " + file, e);
+            return read;
+        }
+        for (String source : props.stringPropertyNames()) {
+            Record r = Record.parse(props.getProperty(source));
+            // forget about files which are gone, so that the index does not grow forever
+            if (r != null && new File(source.replaceFirst("!/.*", "")).exists()) {
+                read.put(source, r);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Adds the records computed since the last save to those other JVMs may have saved in the meantime.
+     */
+    @SuppressWarnings("try")
+    private void save() {
+        if (updated.isEmpty()) {
+            return;
+        }
+        File lockFile = new File(file.getParentFile(), file.getName() + ".lock");
+        try (InterProcessLock lock = InterProcessLock.acquire(lockFile, LOCK_TIMEOUT, file.getName())) {
+            Map<String, Record> merged = read();
+            merged.putAll(updated);
+            Properties props = new Properties();
+            merged.forEach((source, r) -> props.setProperty(source, r.toString()));
+            // several JVMs may share the index, so never let them see a partially written file
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try {
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    props.store(out, "SHA-1 of docker fixture build context files: size,lastModified,sha1");
+                }
+                try {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            updated.clear();
+            records.putAll(merged);
+        } catch (IOException e) {
+            // only a performance problem
+            LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Record {
+        final long size;
+        final long lastModified;
+        final String sha1;
+
+        Record(long size, long lastModified, String sha1) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+
+        static /*@CheckForNull*/ Record parse(String s) {
+            String[] parts = s.split(",");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Record(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return size + "," + lastModified + "," + sha1;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContextHashIndex.class.getName());
+}
@@ -0,0 +1,141 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a {@link BuildContext} as the tar stream {@code docker build -} expects on its standard input,
+ * so that the context never needs to be extracted to disk.
+ * <p>
+ * Only files are sent, with the mode {@link ContextHashIndex} records for them.
+ * Empty directories are left out, as they are from the digest.
+ */
+final class ContextTar {
+    private static final int BLOCK = 512;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+
+    private ContextTar(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes all files of a context.
+     *
+     * @param dockerfile content to send as {@code Dockerfile}, in place of the one in the context
+     */
+    static void write(BuildContext context, byte[] dockerfile, OutputStream out) throws IOException {
+        ContextTar tar = new ContextTar(out);
+        for (BuildContext.Entry e : context.entries()) {
+            if (e.path.equals("Dockerfile")) {
+                tar.add(e.path, e.mode(), dockerfile.length, e.lastModified, new ByteArrayInputStream(dockerfile));
+            } else {
+                try (InputStream in = e.open()) {
+                    if (e.size < 0) {
+                        byte[] data = IOUtils.toByteArray(in);
+                        tar.add(e.path, e.mode(), data.length, e.lastModified, new ByteArrayInputStream(data));
+                    } else {
+                        tar.add(e.path, e.mode(), e.size, e.lastModified, in);
+                    }
+                }
+            }
+        }
+        // end of archive
+        out.write(new byte[2 * BLOCK]);
+        out.flush();
+    }
+
+    private void add(String path, int mode, long size, long lastModified, InputStream in) throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = new byte[0];
+        if (name.length > 100) {
+            int split = splitPoint(path);
+            if (split > 0) {
+                prefix = path.substring(0, split).getBytes(StandardCharsets.UTF_8);
+                name = path.substring(split + 1).getBytes(StandardCharsets.UTF_8);
+            } else {
+                // GNU extension understood by docker: the name follows in a pseudo entry
+                byte[] longName = (path + '\0').getBytes(StandardCharsets.UTF_8);
+                writeHeader("././@LongLink".getBytes(StandardCharsets.US_ASCII), new byte[0], 0644, longName.length, 0, (byte) 'L');
+                writeData(new ByteArrayInputStream(longName), longName.length, path);
+                name = path.substring(0, 100).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        writeHeader(name, prefix, mode, size, lastModified / 1000, (byte) '0');
+        writeData(in, size, path);
+    }
+
+    /**
+     * Finds where to split a long path into the ustar prefix and name fields, or -1 if it cannot be split.
+     */
+    private static int splitPoint(String path) {
+        for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+            if (path.substring(0, i).getBytes(StandardCharsets.UTF_8).length <= 155
+                    && path.substring(i + 1).getBytes(StandardCharsets.UTF_8).length <= 100) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeHeader(byte[] name, byte[] prefix, int mode, long size, long mtime, byte type) throws IOException {
+        byte[] header = new byte[BLOCK];
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        octal(header, 100, 8, mode);
+        octal(header, 108, 8, 0); // uid
+        octal(header, 116, 8, 0); // gid
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, mtime);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        System.arraycopy(prefix, 0, header, 345, Math.min(prefix.length, 155));
+        // the checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        out.write(header);
+    }
+
+    private void writeData(InputStream in, long size, String path) throws IOException {
+        long remaining = size;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new IOException(path + " is shorter than its expected size of " + size + " bytes");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+        int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        out.write(new byte[padding]);
+    }
+
+    /**
+     * Writes a NUL terminated octal number, left-padded with zeros to fill the field.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String s = Long.toOctalString(value);
+        if (s.length() > length - 1) {
+            throw new IllegalArgumentException("Value " + value + " does not fit in a tar header field of " + length + " bytes");
+        }
+        int pad = length - 1 - s.length();
+        for (int i = 0; i < pad; i++) {
+            header[offset + i] = '0';
+        }
+        for (int i = 0; i < s.length(); i++) {
+            header[offset + pad + i] = (byte) s.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+}
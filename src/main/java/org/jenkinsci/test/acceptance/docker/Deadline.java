@@ -0,0 +1,148 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.utils.process.CommandBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounds how long a call to the Docker daemon may take, as configured by {@link Docker#REQUEST_TIMEOUT} and others.
+ * <p>
+ * Processes are destroyed, and connections closed, once their deadline expires or the waiting thread is interrupted,
+ * so that a wedged daemon fails the test instead of stalling it forever.
+ */
+final class Deadline {
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("watchdog"));
+
+    /**
+     * Reads the output of processes, rather than {@link Docker#asyncExecutor()},
+     * which may be replaced by an executor running tasks in the calling thread, or busy with the caller itself.
+     */
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(new NamedThreadFactory("output"));
+
+    private Deadline() {
+    }
+
+    /**
+     * Closes something after a timeout, unless the returned watch is closed first.
+     */
+    static Watch closeAfter(Closeable c, Duration timeout) {
+        Watch w = new Watch();
+        w.future = WATCHDOG.schedule(() -> {
+            w.expired = true;
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing else to do
+            }
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        return w;
+    }
+
+    /**
+     * Destroys a process after a timeout, unless the returned watch is closed first.
+     */
+    static Watch destroyAfter(Process p, Duration timeout) {
+        return closeAfter(() -> destroy(p), timeout);
+    }
+
+    static final class Watch implements AutoCloseable {
+        private ScheduledFuture<?> future;
+        private volatile boolean expired;
+
+        boolean expired() {
+            return expired;
+        }
+
+        @Override
+        public void close() {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for a process to exit, destroying it if it takes too long or the thread is interrupted.
+     *
+     * @param what the command, to tell in the exception
+     * @return the exit code
+     * @throws IOException if the process did not exit in time
+     */
+    static int waitFor(Process p, Duration timeout, Object what) throws IOException, InterruptedException {
+        try {
+            if (!p.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                destroy(p);
+                throw timedOut(what, timeout);
+            }
+            return p.exitValue();
+        } catch (InterruptedException e) {
+            destroy(p);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a command, waiting for it to exit as {@link #waitFor} does.
+     *
+     * @return what the command printed, including its errors
+     * @throws IOException with {@code errorMessage} and that output if the command fails
+     */
+    static String run(CommandBuilder cmd, Duration timeout, String errorMessage) throws IOException, InterruptedException {
+        Process p = cmd.build().redirectErrorStream(true).start();
+        String output = output(p, timeout, cmd);
+        if (p.exitValue() != 0) {
+            throw new IOException(errorMessage + "\n" + output);
+        }
+        return output;
+    }
+
+    /**
+     * Reads what a process prints on its standard output until it exits, as {@link #waitFor} does.
+     * Unlike reading it from the waiting thread, this does not block if the process hangs without closing its output.
+     */
+    static String output(Process p, Duration timeout, Object what) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        p.getOutputStream().close();
+        CompletableFuture<String> output = Docker.supplyAsync(() -> IOUtils.toString(p.getInputStream(), StandardCharsets.UTF_8), READERS);
+        waitFor(p, timeout, what);
+        try {
+            return output.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read the output of " + what, e.getCause());
+        } catch (TimeoutException | InterruptedException e) {
+            destroy(p);
+            if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            }
+            throw timedOut(what, timeout);
+        }
+    }
+
+    static IOException timedOut(Object what, Duration timeout) {
+        return new IOException("Gave up on `" + what + "` after " + format(timeout) + ", the Docker daemon may be stuck");
+    }
+
+    /**
+     * Tells a timeout in whole seconds, or in milliseconds when shorter or not round.
+     */
+    static String format(Duration timeout) {
+        long millis = timeout.toMillis();
+        return millis % 1000 == 0 ? millis / 1000 + "s" : millis + "ms";
+    }
+
+    static void destroy(Process p) {
+        p.descendants().forEach(ProcessHandle::destroyForcibly);
+        p.destroyForcibly();
+    }
+}
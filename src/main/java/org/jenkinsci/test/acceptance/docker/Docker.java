@@ -1,22 +1,41 @@
 package org.jenkinsci.test.acceptance.docker;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.jenkinsci.utils.process.CommandBuilder;
 import org.jvnet.hudson.annotation_indexer.Index;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Entry point to the docker support.
@@ -33,6 +52,36 @@ public class Docker {
      */
     private static final List<String> dockerCmd = Collections.singletonList("docker");
 
+    /**
+     * Images built in this JVM, by fixture.
+     */
+    private static final ClassValue<AtomicReference<CompletableFuture<DockerImage>>> IMAGES = new ClassValue<AtomicReference<CompletableFuture<DockerImage>>>() {
+        @Override
+        protected AtomicReference<CompletableFuture<DockerImage>> computeValue(Class<?> type) {
+            return new AtomicReference<>();
+        }
+    };
+
+    /**
+     * When images built in this JVM were last seen to be present, by tag, in {@link System#nanoTime()}.
+     */
+    private static final Map<String, Long> PRESENT = new ConcurrentHashMap<>();
+
+    /**
+     * How long to trust that a memoized image is still present before inspecting it again.
+     */
+    private static final long PRESENCE_TTL = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Digests of the build contexts of fixtures, by fixture, as computed once in this JVM.
+     */
+    private static final ClassValue<AtomicReference<String>> CONTEXT_DIGESTS = new ClassValue<AtomicReference<String>>() {
+        @Override
+        protected AtomicReference<String> computeValue(Class<?> type) {
+            return new AtomicReference<>();
+        }
+    };
+
     public ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
 
     public Docker() {
@@ -42,15 +91,91 @@ public class Docker {
         return new CommandBuilder(dockerCmd).add(cmd);
     }
 
+    /**
+     * Use the Docker Engine API rather than the {@code docker} command for short requests when possible.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.engineApi} system property, or true.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static boolean ENGINE_API = Boolean.parseBoolean(System.getProperty(Docker.class.getName() + ".engineApi", "true"));
+
+    private static DockerTransport transport;
+
+    /**
+     * Gets the transport used to talk to the Docker daemon, selecting it on first use:
+     * the Engine API if {@link #ENGINE_API} is set and the daemon responds on the socket of the {@code docker} command,
+     * the {@code docker} command otherwise.
+     */
+    public static synchronized DockerTransport transport() {
+        if (transport == null) {
+            EngineApiTransport api = ENGINE_API
+                    ? EngineApiTransport.detect(System.getenv(), new File(System.getenv().getOrDefault("DOCKER_CONFIG", System.getProperty("user.home") + "/.docker")))
+                    : null;
+            transport = api != null && api.ping() ? api : new CliTransport();
+            LOGGER.fine(() -> "Talking to the Docker daemon through " + transport);
+        }
+        return transport;
+    }
+
+    /**
+     * Replaces the transport used to talk to the Docker daemon.
+     *
+     * @param t null to select it again on next use
+     */
+    public static synchronized void setTransport(/*@CheckForNull*/ DockerTransport t) {
+        transport = t;
+    }
+
+    private static Executor asyncExecutor;
+
+    /**
+     * Gets the executor running the asynchronous operations, such as {@link #buildAsync(Class)}:
+     * one virtual thread per operation when the JVM supports them, pooled daemon threads otherwise.
+     */
+    public static synchronized Executor asyncExecutor() {
+        if (asyncExecutor == null) {
+            try {
+                asyncExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // before Java 21
+                asyncExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("async"));
+            }
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Replaces the executor running the asynchronous operations.
+     *
+     * @param executor null to use the default one
+     */
+    public static synchronized void setAsyncExecutor(/*@CheckForNull*/ Executor executor) {
+        asyncExecutor = executor;
+    }
+
+    /**
+     * Runs a task on {@link #asyncExecutor()}, completing the future with the exception it throws, if any.
+     */
+    static <V> CompletableFuture<V> supplyAsync(Callable<V> task) {
+        return supplyAsync(task, asyncExecutor());
+    }
+
+    static <V> CompletableFuture<V> supplyAsync(Callable<V> task, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
     /**
      * Checks if docker is available on this system.
      */
     public boolean isAvailable() {
-        try {
-            return cmd("ps").popen().waitFor() == 0;
-        } catch (InterruptedException | IOException e) {
-            return false;
-        }
+        return transport().ping();
     }
 
     /**
@@ -60,71 +185,281 @@ public class Docker {
      * @return false if the container is not running, true otherwise
      */
     public boolean isContainerRunning(String container) throws IOException, InterruptedException {
-        ProcessBuilder pBuilder = cmd("ps").add("-q", "--filter", "\"id=" + container + '"').build();
-        Process psProcess = pBuilder.start();
+        JsonNode details = transport().inspectContainer(container);
+        return details != null && details.path("State").path("Running").asBoolean();
+    }
 
-        String psOutput = IOUtils.toString(psProcess.getInputStream());
-        int pExit = psProcess.waitFor();
-        if (pExit == 0) {
-            return psOutput.contains(container);
-        }
-        // docker command errored - and it does not do this if there is no match.
-        System.err.println("docker ps failed with code: " + pExit + 
-                          (psOutput != null ? " and output: " + psOutput : " and provided no output"));
-        return false;
+    /**
+     * Checks if an image with the given tag is present locally.
+     *
+     * @param tag Full image tag, such as {@code jenkins/sshd:23e678bc2c56}
+     * @return true if the image exists, false otherwise
+     */
+    public boolean isImagePresent(String tag) throws IOException, InterruptedException {
+        return transport().inspectImage(tag) != null;
     }
 
     /**
-     * Builds a docker image.
+     * Gets the build context digest recorded in a local image.
      *
-     * @param image Name of the image to be built.
-     * @param dir   Directory that contains Dockerfile
+     * @param tag Full image tag
+     * @return null if the image is not present locally, or was not built by this library
      */
-    private DockerImage build(String image, File dir) throws IOException, InterruptedException {
-        return build(image, dir, null);
+    private /*@CheckForNull*/ String getImageContextDigest(String tag) throws IOException, InterruptedException {
+        JsonNode details = transport().inspectImage(tag);
+        if (details == null) {
+            return null;
+        }
+        JsonNode digest = details.path("Config").path("Labels").path(CONTEXT_LABEL);
+        return digest.isTextual() ? digest.asText() : null;
     }
 
     @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "TODO needs triage")
     public static boolean NO_CACHE;
 
     /**
-     * Builds a docker image.
+     * Run {@code docker build} even if an image with the expected tag is already present locally.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.forceRebuild} system property.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static boolean FORCE_REBUILD = Boolean.getBoolean(Docker.class.getName() + ".forceRebuild");
+
+    /**
+     * Directory for state shared across test runs, such as the index of build context file hashes.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.cacheDir} system property,
+     * or {@code docker-fixtures} in the temporary directory.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static File CACHE_DIR = new File(System.getProperty(Docker.class.getName() + ".cacheDir",
+            new File(System.getProperty("java.io.tmpdir"), "docker-fixtures").getPath()));
+
+    /**
+     * How long to wait, in seconds, for another process building the same image before building it anyway.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.buildLockTimeout} system property, or 20 minutes.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static long BUILD_LOCK_TIMEOUT = Long.getLong(Docker.class.getName() + ".buildLockTimeout", 20 * 60);
+
+    /**
+     * When set, images are built with BuildKit ({@code docker buildx build}), importing and exporting layer caches
+     * in this directory, keyed by fixture and build context digest, so that a Docker host with an empty image store
+     * can reuse the layers built by previous runs. CI jobs may save and restore the directory between runs.
+     * The BuildKit builder must be able to export caches and to see the images of parent fixtures,
+     * as the default builder of a Docker daemon using the containerd image store does.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.buildKitCacheDir} system property.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static File BUILDKIT_CACHE_DIR = System.getProperty(Docker.class.getName() + ".buildKitCacheDir") != null
+            ? new File(System.getProperty(Docker.class.getName() + ".buildKitCacheDir")) : null;
+
+    /**
+     * When set, images are saved with {@code docker save} to {@code <id>-<version>.tar} in this directory after being built,
+     * and loaded from there before building, so that hosts without network access need not build them again.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.imageArchiveDir} system property.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static File IMAGE_ARCHIVE_DIR = System.getProperty(Docker.class.getName() + ".imageArchiveDir") != null
+            ? new File(System.getProperty(Docker.class.getName() + ".imageArchiveDir")) : null;
+
+    /**
+     * Total size of the tarballs kept in {@link #IMAGE_ARCHIVE_DIR}, in megabytes, beyond which the least recently used
+     * ones are deleted.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.imageArchiveMaxSize} system property, or 10GB.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static long IMAGE_ARCHIVE_MAX_SIZE = Long.getLong(Docker.class.getName() + ".imageArchiveMaxSize", 10 * 1024);
+
+    /**
+     * How long to keep a reused container running once no test uses it, in seconds, so that later tests can use it too:
+     * 0 to close it right away, or a negative value to keep it until the JVM exits.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.sharedContainerLinger} system property, or -1.
+     *
+     * @see DockerRule#reused()
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static long SHARED_CONTAINER_LINGER = Long.getLong(Docker.class.getName() + ".sharedContainerLinger", -1);
+
+    /**
+     * Whether to remove containers in the background when tests are done with them, rather than waiting for it.
+     * Removals still pending when the JVM exits are waited for.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.asyncTeardown} system property.
      *
-     * @param image Name of the image to be built.
-     * @param dir   Directory that contains Dockerfile
-     * @param log   Log file to store image building output
+     * @see DockerContainer#closeAll
      */
-    private DockerImage build(String image, File dir, /*@CheckForNull*/ File log) throws IOException, InterruptedException {
-        // compute tag from the content of Dockerfile
-        String tag = getDockerFileHash(dir);
-        String fullTag = image + ":" + tag;
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static boolean ASYNC_TEARDOWN = Boolean.getBoolean(Docker.class.getName() + ".asyncTeardown");
 
-        CommandBuilder buildCmd = cmd("build").add("-t", fullTag);
-        buildCmd.add(dir);
+    /**
+     * Kilobytes of recent output to keep in memory for each container, and to print when a test fails.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.logBufferSize} system property, or 64.
+     *
+     * @see DockerContainer#getRecentLog()
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static int LOG_BUFFER_SIZE = Integer.getInteger(Docker.class.getName() + ".logBufferSize", 64);
+
+    /**
+     * Image label holding the digest of the whole build context of a fixture, including its parents.
+     * The tag starts with the hash of the {@code Dockerfile}, which the {@code FROM} directive of child fixtures refers to,
+     * followed by the beginning of this digest, so that contexts sharing a {@code Dockerfile} get images of their own.
+     */
+    static final String CONTEXT_LABEL = "org.jenkinsci.test.acceptance.docker.context";
+
+    /**
+     * Builds a docker image, sending the build context straight from the classpath to {@code docker build -}.
+     *
+     * @param fullTag       Name and tag of the image to be built.
+     * @param contextDigest Digest of the build context, recorded as {@link #CONTEXT_LABEL}
+     * @param context       Files to send as the build context
+     * @param dockerfile    Content of the Dockerfile, in place of the one in {@code context}
+     * @param log           Log file to store image building output
+     */
+    private DockerImage build(String fullTag, String contextDigest, BuildContext context, byte[] dockerfile, /*@CheckForNull*/ File log) throws IOException, InterruptedException {
+        CommandBuilder buildCmd;
+        File fixtureCache = null;
+        File layerCache = null;
+        if (BUILDKIT_CACHE_DIR != null) {
+            fixtureCache = new File(BUILDKIT_CACHE_DIR, fullTag.substring(0, fullTag.lastIndexOf(':')).replaceAll("[^A-Za-z0-9._-]", "_"));
+            layerCache = new File(fixtureCache, contextDigest);
+            buildCmd = cmd("buildx", "build", "--load");
+            File source = NO_CACHE ? null : findLayerCache(fixtureCache, contextDigest);
+            if (source != null) {
+                buildCmd.add("--cache-from", "type=local,src=" + source);
+            }
+            buildCmd.add("--cache-to", "type=local,mode=max,dest=" + layerCache);
+        } else {
+            buildCmd = cmd("build");
+        }
+        // also tagged with the hash of the Dockerfile alone, for those looking for the image of a fixture by hand
+        buildCmd.add("-t", fullTag).add("-t", dockerfileTag(fullTag)).add("--label", CONTEXT_LABEL + "=" + contextDigest);
+        if (NO_CACHE) {
+            buildCmd.add("--no-cache=true");
+        }
+        buildCmd.add("-");
         ProcessBuilder processBuilder = buildCmd.build().redirectErrorStream(true);
         if (log != null) {
             processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
         } else {
             processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
         }
-        if (NO_CACHE) {
-            buildCmd.add("--no-cache=true");
-        }
 
-        StringBuilder sb = new StringBuilder("Building Docker image `").append(buildCmd.toString()).append("`");
+        StringBuilder sb = new StringBuilder("Building Docker image `").append(buildCmd.toString()).append("` from ").append(context);
         if (log != null) {
             sb.append(": logfile is at ").append(log);
         }
         System.out.println(sb.toString());
 
-        int exit = processBuilder.start().waitFor();
+        RetryPolicy retry = new RetryPolicy(buildCmd);
+        int exit;
+        while (true) {
+            long logStart = log != null ? log.length() : 0;
+            exit = runBuild(processBuilder, buildCmd, context, dockerfile);
+            // without a log file, the output went straight to ours and cannot tell whether the failure is transient
+            if (exit == 0 || !retry.retry(log != null ? readFrom(log, logStart) : null)) {
+                break;
+            }
+        }
         if (exit != 0) {
-            throw new Error("Failed to build image (" + exit + "): " + tag);
+            throw new Error("Failed to build image (" + exit + "): " + fullTag);
+        }
+        if (layerCache != null) {
+            pruneLayerCaches(fixtureCache, layerCache);
         }
         return new DockerImage(fullTag);
     }
 
+    /**
+     * Runs {@code docker build} once, sending it the build context.
+     *
+     * @return the exit code
+     */
+    private static int runBuild(ProcessBuilder processBuilder, CommandBuilder buildCmd, BuildContext context, byte[] dockerfile) throws IOException, InterruptedException {
+        Process p = processBuilder.start();
+        Duration timeout = Duration.ofSeconds(BUILD_TIMEOUT);
+        IOException sendFailure = null;
+        int exit;
+        try (Deadline.Watch watch = Deadline.destroyAfter(p, timeout)) {
+            try (OutputStream stdin = new BufferedOutputStream(p.getOutputStream())) {
+                ContextTar.write(context, dockerfile, stdin);
+            } catch (IOException e) {
+                // docker may have stopped reading the context, in which case its exit code tells why
+                sendFailure = e;
+            }
+            try {
+                exit = p.waitFor();
+            } catch (InterruptedException e) {
+                Deadline.destroy(p);
+                throw e;
+            }
+            if (watch.expired()) {
+                throw Deadline.timedOut(buildCmd, timeout);
+            }
+        }
+        if (exit == 0 && sendFailure != null) {
+            throw sendFailure;
+        }
+        return exit;
+    }
+
+    /**
+     * Reads what was appended to a log since it had the given length, up to {@link #LOG_BUFFER_SIZE} kilobytes from its end.
+     */
+    static String readFrom(File log, long start) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(log, "r")) {
+            long from = Math.max(start, f.length() - LOG_BUFFER_SIZE * 1024L);
+            byte[] data = new byte[(int) Math.max(0, f.length() - from)];
+            f.seek(from);
+            f.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Picks the BuildKit layer cache to import for a fixture: the one exported for the same build context if any,
+     * otherwise the most recent one, which still covers the layers before the first changed instruction.
+     *
+     * @param fixtureCache directory holding the layer caches of a fixture, one per context digest
+     * @return null if there is no usable cache
+     */
+    static /*@CheckForNull*/ File findLayerCache(File fixtureCache, String contextDigest) {
+        File exact = new File(fixtureCache, contextDigest);
+        if (new File(exact, "index.json").isFile()) {
+            return exact;
+        }
+        File[] caches = fixtureCache.listFiles(d -> new File(d, "index.json").isFile());
+        if (caches == null || caches.length == 0) {
+            return null;
+        }
+        return Collections.max(Arrays.asList(caches), Comparator.comparingLong(d -> new File(d, "index.json").lastModified()));
+    }
+
+    /**
+     * Deletes the layer caches of a fixture other than the one just exported, which supersedes them.
+     */
+    static void pruneLayerCaches(File fixtureCache, File keep) {
+        File[] caches = fixtureCache.listFiles(File::isDirectory);
+        if (caches == null) {
+            return;
+        }
+        for (File cache : caches) {
+            if (!cache.equals(keep)) {
+                FileUtils.deleteQuietly(cache);
+            }
+        }
+    }
+
+    /**
+     * Builds the image of a fixture without blocking, as {@link #build(Class)} does, on {@link #asyncExecutor()}.
+     */
+    public CompletableFuture<DockerImage> buildAsync(Class<? extends DockerContainer> fixture) {
+        return supplyAsync(() -> build(fixture));
+    }
+
     public DockerImage build(Class<? extends DockerContainer> fixture) throws IOException, InterruptedException {
+        CompletableFuture<DockerImage> built = IMAGES.get(fixture).get();
+        if (built != null && built.isDone() && !built.isCompletedExceptionally() && isStillPresent(built.join())) {
+            return built.join();
+        }
         File buildlog = File.createTempFile("docker-" + fixture.getSimpleName() + "-build", ".log");
         DockerImage image = null;
         try {
@@ -138,125 +473,418 @@ public class Docker {
         return image;
     }
 
+    /**
+     * Prints the end of a log, up to {@link #LOG_BUFFER_SIZE} kilobytes.
+     */
     static void dump(File log) throws IOException {
         if (log != null) {
             System.out.println("---%<--- " + log.getName());
-            FileUtils.copyFile(log, System.out);
+            try (RandomAccessFile f = new RandomAccessFile(log, "r")) {
+                long skipped = Math.max(0, f.length() - LOG_BUFFER_SIZE * 1024L);
+                if (skipped > 0) {
+                    System.out.println("(" + skipped + " bytes skipped)");
+                    f.seek(skipped);
+                }
+                Channels.newInputStream(f.getChannel()).transferTo(System.out);
+            }
             System.out.println("--->%---");
         }
     }
 
-    public DockerImage build(Class<? extends DockerContainer> fixture, File log) throws IOException, InterruptedException {
-        if (fixture.getSuperclass() != DockerContainer.class && fixture.getSuperclass() != DynamicDockerContainer.class) {
-            build((Class) fixture.getSuperclass(), log); // build the base image first
+    /**
+     * Prints the end of the output of a container.
+     */
+    static void dump(DockerContainer container) throws IOException {
+        String log;
+        try {
+            log = container.getRecentLog();
+        } catch (IllegalStateException e) {
+            dump(container.getLogfile());
+            return;
         }
+        System.out.println("---%<--- " + container);
+        System.out.print(log);
+        System.out.println("--->%---");
+    }
+
+    /**
+     * Maximum number of images {@link #buildAll(Collection)} builds at the same time.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.buildParallelism} system property, or 4.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static int BUILD_PARALLELISM = Integer.getInteger(Docker.class.getName() + ".buildParallelism", 4);
+
+    /**
+     * How long an image build may take, in seconds, including loading and saving {@linkplain #IMAGE_ARCHIVE_DIR archives}.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.buildTimeout} system property, or one hour.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static long BUILD_TIMEOUT = Long.getLong(Docker.class.getName() + ".buildTimeout", 3600);
+
+    /**
+     * How long {@code docker run} may take to create and start a container, or {@code docker cp} to copy files, in seconds.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.runTimeout} system property, or five minutes.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static long RUN_TIMEOUT = Long.getLong(Docker.class.getName() + ".runTimeout", 300);
+
+    /**
+     * How long other requests to the daemon, such as inspecting, killing and removing containers, may take, in seconds.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.requestTimeout} system property, or one minute.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static long REQUEST_TIMEOUT = Long.getLong(Docker.class.getName() + ".requestTimeout", 60);
+
+    /**
+     * How many times to try {@code docker run} and {@code docker build} when they fail with an error that may be transient,
+     * such as a port still allocated or a deadline exceeded by a busy daemon, 1 not to retry.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.retryAttempts} system property, or 3.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static int RETRY_ATTEMPTS = Integer.getInteger(Docker.class.getName() + ".retryAttempts", 3);
 
+    /**
+     * Delay before the second of the {@link #RETRY_ATTEMPTS}, in milliseconds, doubling for each further attempt
+     * and randomized so that parallel callers do not retry all at once.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.retryDelay} system property, or 500.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static long RETRY_DELAY = Long.getLong(Docker.class.getName() + ".retryDelay", 500);
+
+    /**
+     * Lowest host port {@link DockerImage.Starter#withAllocatedPortOffset()} may publish a container port on.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.minAllocatedPort} system property, or 20000.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static int MIN_ALLOCATED_PORT = Integer.getInteger(Docker.class.getName() + ".minAllocatedPort", 20000);
+
+    /**
+     * Highest host port {@link DockerImage.Starter#withAllocatedPortOffset()} may publish a container port on,
+     * by default below the ephemeral ports Linux hands out to outgoing connections and to randomly published ports.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.maxAllocatedPort} system property, or 32767.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static int MAX_ALLOCATED_PORT = Integer.getInteger(Docker.class.getName() + ".maxAllocatedPort", 32767);
+
+    /**
+     * Maximum number of containers {@link DockerClassRule#createAsync()} starts at the same time for a rule.
+     * Defaults to the {@code org.jenkinsci.test.acceptance.docker.Docker.startParallelism} system property, or 4.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "configurable from tests")
+    public static int START_PARALLELISM = Integer.getInteger(Docker.class.getName() + ".startParallelism", 4);
+
+    /**
+     * Builds the images of several fixtures in parallel, using at most {@link #BUILD_PARALLELISM} concurrent builds.
+     *
+     * @see #buildAll(Collection, int)
+     */
+    public Map<Class<? extends DockerContainer>, DockerImage> buildAll(Collection<Class<? extends DockerContainer>> fixtures) throws IOException, InterruptedException {
+        return buildAll(fixtures, BUILD_PARALLELISM);
+    }
+
+    /**
+     * Builds the images of several fixtures in parallel.
+     * <p>
+     * Fixtures and their parents form a tree: each image is built as soon as the image of its parent is ready,
+     * so that siblings are built concurrently and a parent shared by several fixtures is built only once.
+     *
+     * @param fixtures            fixtures to build
+     * @param maxConcurrentBuilds maximum number of images to build at the same time
+     * @return the image of each requested fixture, in iteration order of {@code fixtures}
+     */
+    public Map<Class<? extends DockerContainer>, DockerImage> buildAll(Collection<Class<? extends DockerContainer>> fixtures, int maxConcurrentBuilds) throws IOException, InterruptedException {
+        if (maxConcurrentBuilds < 1) {
+            throw new IllegalArgumentException("maxConcurrentBuilds must be positive: " + maxConcurrentBuilds);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentBuilds, new NamedThreadFactory("build"));
         try {
-            DockerFixture f = fixture.getAnnotation(DockerFixture.class);
-            if (f == null) {
-                throw new AssertionError(fixture + " is missing @DockerFixture");
+            Map<Class<? extends DockerContainer>, CompletableFuture<DockerImage>> nodes = new HashMap<>();
+            for (Class<? extends DockerContainer> fixture : fixtures) {
+                schedule(fixture, nodes, executor);
             }
+            Map<Class<? extends DockerContainer>, DockerImage> images = new LinkedHashMap<>();
+            for (Class<? extends DockerContainer> fixture : fixtures) {
+                try {
+                    images.put(fixture, nodes.get(fixture).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Failed to build image: " + fixture, cause);
+                }
+            }
+            return images;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            File dir = Files.createTempDirectory("docker-build").toFile();
+    private CompletableFuture<DockerImage> schedule(Class<? extends DockerContainer> fixture,
+                                                    Map<Class<? extends DockerContainer>, CompletableFuture<DockerImage>> nodes,
+                                                    Executor executor) {
+        CompletableFuture<DockerImage> node = nodes.get(fixture);
+        if (node == null) {
+            Class<? extends DockerContainer> parent = getParentFixture(fixture);
+            CompletableFuture<DockerImage> parentNode = parent != null ? schedule(parent, nodes, executor) : CompletableFuture.completedFuture(null);
+            node = parentNode.thenApplyAsync(parentImage -> {
+                try {
+                    // the parent is already built, so this only builds the fixture itself
+                    return build(fixture);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            nodes.put(fixture, node);
+        }
+        return node;
+    }
+
+    /**
+     * Builds the image of a fixture, after the images of its parents.
+     * <p>
+     * Images are only built once per JVM; concurrent callers asking for the same fixture wait for a single build.
+     * Images found to be missing, for example because they were removed by another test, are built again,
+     * so callers do not depend on the order in which fixtures are used.
+     *
+     * @param log Log file to store image building output, not written to if the image was already built
+     */
+    public DockerImage build(Class<? extends DockerContainer> fixture, File log) throws IOException, InterruptedException {
+        AtomicReference<CompletableFuture<DockerImage>> ref = IMAGES.get(fixture);
+        while (true) {
+            CompletableFuture<DockerImage> future = new CompletableFuture<>();
+            CompletableFuture<DockerImage> existing = ref.compareAndExchange(null, future);
+            if (existing == null) {
+                try {
+                    DockerImage image = doBuild(fixture, log);
+                    PRESENT.put(image.tag, System.nanoTime());
+                    future.complete(image);
+                    return image;
+                } catch (Throwable t) {
+                    // let the next caller try again
+                    ref.set(null);
+                    future.completeExceptionally(t);
+                    throw t;
+                }
+            }
+            DockerImage image;
             try {
-                copyDockerfileDirectory(fixture, f, dir);
-                return build("jenkins/" + f.id(), dir, log);
-            } finally {
-                FileUtils.deleteDirectory(dir);
+                image = existing.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to build image: " + fixture, e.getCause());
+            }
+            if (isStillPresent(image)) {
+                return image;
+            }
+            ref.compareAndSet(existing, null);
+        }
+    }
+
+    /**
+     * Makes the next build of the fixture of an image inspect it rather than trust it is still present.
+     */
+    static void recheckPresence(String tag) {
+        PRESENT.remove(tag);
+    }
+
+    /**
+     * Checks that an image built before is still there, for example not removed by another test,
+     * asking the daemon at most once per {@link #PRESENCE_TTL} so that memoized images are found without a round-trip.
+     */
+    private boolean isStillPresent(DockerImage image) throws IOException, InterruptedException {
+        Long seen = PRESENT.get(image.tag);
+        if (seen != null && System.nanoTime() - seen < PRESENCE_TTL) {
+            return true;
+        }
+        if (!isImagePresent(image.tag)) {
+            PRESENT.remove(image.tag);
+            return false;
+        }
+        PRESENT.put(image.tag, System.nanoTime());
+        return true;
+    }
+
+    @SuppressWarnings("try")
+    private DockerImage doBuild(Class<? extends DockerContainer> fixture, File log) throws IOException, InterruptedException {
+        Class<? extends DockerContainer> parent = getParentFixture(fixture);
+        DockerImage parentImage = null;
+        if (parent != null) {
+            parentImage = build(parent, log); // build the base image first
+        }
+
+        DockerFixture f = getFixtureAnnotation(fixture);
+        try (BuildContext context = buildContext(fixture, f)) {
+            byte[] dockerfile = processDockerfile(fixture, context.readDockerfile());
+            // compute tag from the content of Dockerfile and of the rest of the context
+            String contextDigest = getContextDigest(fixture, context, dockerfile);
+            String version = getDockerFileHash(dockerfile) + "-" + contextDigest.substring(0, 12);
+            String fullTag = "jenkins/" + f.id() + ":" + version;
+            if (parentImage != null) {
+                dockerfile = rebase(fixture, dockerfile, parentImage);
+            }
+
+            if (isUpToDate(fullTag, contextDigest)) {
+                return new DockerImage(fullTag);
+            }
+
+            // parallel test JVMs wait for the first one to build the image rather than all building it at once
+            File lockFile = new File(CACHE_DIR, "locks/" + fullTag.replaceAll("[^A-Za-z0-9._-]", "_") + ".lock");
+            try (InterProcessLock lock = InterProcessLock.acquire(lockFile, BUILD_LOCK_TIMEOUT * 1000, fullTag)) {
+                if (isUpToDate(fullTag, contextDigest)) {
+                    return new DockerImage(fullTag);
+                }
+                ImageArchiveCache archives = IMAGE_ARCHIVE_DIR != null
+                        ? new ImageArchiveCache(IMAGE_ARCHIVE_DIR, IMAGE_ARCHIVE_MAX_SIZE * 1024 * 1024) : null;
+                if (archives != null && !NO_CACHE && !FORCE_REBUILD && archives.load(f.id(), version, log) && isUpToDate(fullTag, contextDigest)) {
+                    return new DockerImage(fullTag);
+                }
+                DockerImage image = build(fullTag, contextDigest, context, dockerfile, log);
+                if (archives != null) {
+                    archives.save(f.id(), version, fullTag, log);
+                }
+                return image;
             }
         } catch (InterruptedException | IOException e) {
             throw new IOException("Failed to build image: " + fixture, e);
         }
     }
 
-    //package scope for testing purposes. Ideally we should encapsulate Docker interactions so they can be mocked
-    // and call public method.
-    void copyDockerfileDirectory(Class<? extends DockerContainer> fixture, DockerFixture f, File dir)
-            throws IOException {
-        String dockerfilePath = resolveDockerfileLocation(fixture, f);
-        copyDockerfileDirectoryFromClasspath(fixture, dockerfilePath, dir);
+    private static final Pattern FROM = Pattern.compile("^(\\s*FROM\\s+(?:--platform=\\S+\\s+)?)(\\S+)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    /**
+     * Makes the {@code FROM} directive of a fixture refer to the image of its parent fixture as just built,
+     * as it only names the hash of the parent {@code Dockerfile}, which other contexts may share.
+     *
+     * @throws IOException if the directive refers to an outdated tag docker would try to pull
+     */
+    static byte[] rebase(Class<? extends DockerContainer> fixture, byte[] dockerfile, DockerImage parentImage) throws IOException {
+        String parentTag = dockerfileTag(parentImage.tag);
+        String repository = parentTag.substring(0, parentTag.lastIndexOf(':') + 1);
+        Matcher m = FROM.matcher(new String(dockerfile, StandardCharsets.UTF_8));
+        StringBuffer rebased = new StringBuffer();
+        while (m.find()) {
+            String base = m.group(2);
+            if (base.equals(parentTag)) {
+                base = parentImage.tag;
+            } else if (base.startsWith(repository)) {
+                throw new IOException("The Dockerfile of " + fixture.getName() + " is based on " + base
+                        + " but the image of its parent fixture is " + parentTag + ", please update its FROM directive");
+            }
+            m.appendReplacement(rebased, Matcher.quoteReplacement(m.group(1) + base));
+        }
+        m.appendTail(rebased);
+        return rebased.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    private String resolveDockerfileLocation(Class<? extends DockerContainer> fixture, DockerFixture f) {
-        String prefix;
-        if(isSpecificDockerfileLocationSet(f)) {
-            prefix = f.dockerfileFolder();
-        } else {
-            prefix = fixture.getName();
+    /**
+     * Drops the context digest from the tag of an image, leaving the hash of its {@code Dockerfile}.
+     */
+    private static String dockerfileTag(String fullTag) {
+        return fullTag.substring(0, fullTag.lastIndexOf('-'));
+    }
+
+    private boolean isUpToDate(String fullTag, String contextDigest) throws IOException, InterruptedException {
+        if (!NO_CACHE && !FORCE_REBUILD && contextDigest.equals(getImageContextDigest(fullTag))) {
+            System.out.println("Docker image " + fullTag + " is up to date, skipping build");
+            return true;
         }
-        return prefix.replace('.', '/').replace('$', '/');
+        return false;
     }
 
-    private void copyDockerfileDirectoryFromClasspath(Class<? extends DockerContainer> fixture, String dockerfileLocation, File dir) throws IOException {
-        File jar = null;
-        try {
-            jar = Which.jarFile(fixture);
-        } catch (IllegalArgumentException e) {
-            // fall through
+    /**
+     * Computes the digest of every file in the build context of a fixture and of its parents.
+     * Images are rebuilt whenever this changes, as seen the first time it is computed in this JVM.
+     */
+    String getContextDigest(Class<? extends DockerContainer> fixture) throws IOException {
+        String digest = CONTEXT_DIGESTS.get(fixture).get();
+        if (digest != null) {
+            return digest;
+        }
+        try (BuildContext context = buildContext(fixture, getFixtureAnnotation(fixture))) {
+            return getContextDigest(fixture, context, processDockerfile(fixture, context.readDockerfile()));
         }
+    }
 
-        if (jar!=null && jar.isFile()) {
-            // files are packaged into a jar/war. extract them
-            dockerfileLocation += "/";
-            copyDockerfileDirectoryFromPackaged(jar, dockerfileLocation, dir);
-        } else {
-            // Dockerfile is not packaged into a jar file, so copy locally
-            copyDockerfileDirectoryFromLocal(dockerfileLocation, dir);
+    private String getContextDigest(Class<? extends DockerContainer> fixture, BuildContext context, byte[] dockerfile) throws IOException {
+        AtomicReference<String> memo = CONTEXT_DIGESTS.get(fixture);
+        String digest = memo.get();
+        if (digest == null) {
+            Class<? extends DockerContainer> parent = getParentFixture(fixture);
+            String parentDigest = parent != null ? getContextDigest(parent) : null;
+            digest = ContextHashIndex.in(CACHE_DIR).digest(context, dockerfile, parentDigest);
+            memo.set(digest);
+        }
+        return digest;
+    }
+
+    private static /*@CheckForNull*/ Class<? extends DockerContainer> getParentFixture(Class<? extends DockerContainer> fixture) {
+        Class<?> parent = fixture.getSuperclass();
+        if (parent == DockerContainer.class || parent == DynamicDockerContainer.class) {
+            return null;
+        }
+        return parent.asSubclass(DockerContainer.class);
+    }
+
+    private static DockerFixture getFixtureAnnotation(Class<? extends DockerContainer> fixture) {
+        DockerFixture f = fixture.getAnnotation(DockerFixture.class);
+        if (f == null) {
+            throw new AssertionError(fixture + " is missing @DockerFixture");
+        }
+        return f;
+    }
+
+    //package scope for testing purposes. Ideally we should encapsulate Docker interactions so they can be mocked
+    // and call public method.
+    void copyDockerfileDirectory(Class<? extends DockerContainer> fixture, DockerFixture f, File dir)
+            throws IOException {
+        try (BuildContext context = buildContext(fixture, f)) {
+            context.copyTo(dir);
         }
         // if the fixture is dynamic (needs to know something about our environment then process it.
         if (DynamicDockerContainer.class.isAssignableFrom(fixture)) {
-            try {
-                DynamicDockerContainer newInstance = (DynamicDockerContainer) fixture.newInstance();
-                newInstance.process(new File(dir, "Dockerfile"));
-            }
-            catch (InstantiationException | IllegalAccessException ex) {
-                throw new IOException("Could not transfrom Dockerfile", ex);
-            }
+            newDynamicInstance(fixture).process(new File(dir, "Dockerfile"));
         }
     }
 
-    private boolean isSpecificDockerfileLocationSet(DockerFixture f) {
-        return !f.dockerfileFolder().isEmpty();
+    private BuildContext buildContext(Class<? extends DockerContainer> fixture, DockerFixture f) throws IOException {
+        return BuildContext.of(fixture, resolveDockerfileLocation(fixture, f), classLoader);
     }
 
-    private void copyDockerfileDirectoryFromPackaged(File jar, String fixtureLocation, File outputDirectory) throws IOException {
-        try (JarFile j = new JarFile(jar)) {
-            Enumeration<JarEntry> e = j.entries();
-            while (e.hasMoreElements()) {
-                JarEntry je = e.nextElement();
-                if (je.getName().startsWith(fixtureLocation)) {
-                    File dst = new File(outputDirectory, je.getName().substring(fixtureLocation.length()));
-                    if (je.isDirectory()) {
-                        dst.mkdirs();
-                    } else {
-                        try (InputStream in = j.getInputStream(je)) {
-                            FileUtils.copyInputStreamToFile(in, dst);
-                        }
-                    }
-                }
-            }
+    private static byte[] processDockerfile(Class<? extends DockerContainer> fixture, byte[] dockerfile) throws IOException {
+        if (DynamicDockerContainer.class.isAssignableFrom(fixture)) {
+            String contents = new String(dockerfile, StandardCharsets.UTF_8);
+            return newDynamicInstance(fixture).process(contents).getBytes(StandardCharsets.UTF_8);
         }
+        return dockerfile;
     }
 
-    private void copyDockerfileDirectoryFromLocal(String fixtureLocation, File outputDirectory) throws IOException {
-        URL resourceDir = classLoader.getResource(fixtureLocation);
-        if (resourceDir == null) throw new Error("The fixture directory does not exist: " + fixtureLocation);
-        copyFile(outputDirectory, resourceDir);
+    private static DynamicDockerContainer newDynamicInstance(Class<? extends DockerContainer> fixture) throws IOException {
+        try {
+            return (DynamicDockerContainer) fixture.newInstance();
+        } catch (InstantiationException | IllegalAccessException ex) {
+            throw new IOException("Could not transfrom Dockerfile", ex);
+        }
     }
 
-    private void copyFile(File outputDirectory, URL resourceDir) throws IOException {
-        File dockerFileDir;
-        try {
-            dockerFileDir = new File(resourceDir.toURI());
-        } catch (URISyntaxException e) {
-            dockerFileDir = new File(resourceDir.getPath());
+    private String resolveDockerfileLocation(Class<? extends DockerContainer> fixture, DockerFixture f) {
+        String prefix;
+        if(isSpecificDockerfileLocationSet(f)) {
+            prefix = f.dockerfileFolder();
+        } else {
+            prefix = fixture.getName();
         }
-        FileUtils.copyDirectory(dockerFileDir, outputDirectory);
+        return prefix.replace('.', '/').replace('$', '/');
+    }
+
+    private boolean isSpecificDockerfileLocationSet(DockerFixture f) {
+        return !f.dockerfileFolder().isEmpty();
     }
 
-    private String getDockerFileHash(File dockerFileDir) {
-        File dockerFile = new File(dockerFileDir, "Dockerfile");
-        SHA1Sum dockerFileHash = new SHA1Sum(dockerFile);
+    private static String getDockerFileHash(byte[] dockerfile) throws IOException {
+        SHA1Sum dockerFileHash = new SHA1Sum(new ByteArrayInputStream(dockerfile));
         return dockerFileHash.getSha1String().substring(0, 12);
     }
 
@@ -274,4 +902,5 @@ public class Docker {
         throw new IllegalArgumentException("No such docker fixture found: " + id);
     }
 
+    private static final Logger LOGGER = Logger.getLogger(Docker.class.getName());
 }
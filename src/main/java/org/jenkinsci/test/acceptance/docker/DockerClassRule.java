@@ -25,8 +25,17 @@
 package org.jenkinsci.test.acceptance.docker;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.ClassRule;
 import org.junit.rules.TestRule;
 import org.junit.rules.Timeout;
@@ -43,8 +52,14 @@ import org.junit.runners.model.Statement;
 public class DockerClassRule<T extends DockerContainer> implements TestRule {
 
     private final DockerRule<T> delegate;
+    private /*@CheckForNull*/ Callable<T> starter;
     private DockerImage image;
-    private List<T> containers = new ArrayList<>();
+    private final List<T> containers = new CopyOnWriteArrayList<>();
+    private final Set<CompletableFuture<T>> starting = ConcurrentHashMap.newKeySet();
+    private ExecutorService executor;
+    private int poolSize;
+    private Duration idleTimeout = Duration.ofMinutes(5);
+    private ContainerPool<T> pool;
 
     public DockerClassRule(Class<T> type) {
         delegate = new DockerRule<>(type);
@@ -55,25 +70,172 @@ public class DockerClassRule<T extends DockerContainer> implements TestRule {
         return this;
     }
 
+    /**
+     * Waits for containers to be ready when creating them.
+     */
+    public DockerClassRule<T> waitingFor(WaitStrategy waitStrategy) {
+        delegate.waitingFor(waitStrategy);
+        return this;
+    }
+
+    /**
+     * Makes {@link #create()} return the container shared with all other tests of the JVM reusing the same fixture,
+     * {@linkplain DockerContainer#reset() reset} for each call.
+     *
+     * @see DockerRule#reused()
+     */
+    public DockerClassRule<T> reused() {
+        delegate.reused();
+        return this;
+    }
+
+    /**
+     * Starts containers with some code of the test rather than from the image of the fixture, which is then not built,
+     * for instance to run an image built or pulled elsewhere, or with options of its own.
+     * The containers are created, pooled and closed as the others, but cannot be {@linkplain #reused() reused}.
+     *
+     * @param starter starts a container, waiting until it is ready
+     */
+    public DockerClassRule<T> startingWith(Callable<T> starter) {
+        this.starter = starter;
+        return this;
+    }
+
+    /**
+     * Keeps some containers started in the background, so that {@link #create()} can return one right away.
+     * Each container handed out is replaced by a new one, and those left over are closed when the tests finish.
+     * Ignored for {@linkplain #reused() reused} containers.
+     *
+     * @param size number of containers to keep ready
+     */
+    public DockerClassRule<T> pooled(int size) {
+        poolSize = size;
+        return this;
+    }
+
+    /**
+     * How long to keep pooled containers running while {@link #create()} is not called, five minutes by default.
+     * They are started again on next use.
+     */
+    public DockerClassRule<T> withIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
     @Override
     public Statement apply(final Statement base, Description description) {
         return new Statement() {
             @Override
             public void evaluate() throws Throwable {
-                image = delegate.build();
+                if (starter == null) {
+                    image = delegate.build();
+                } else if (delegate.reused) {
+                    throw new IllegalStateException("Containers started by the test cannot be reused");
+                }
+                if (poolSize > 0 && !delegate.reused) {
+                    pool = new ContainerPool<>(DockerClassRule.this::start, poolSize, idleTimeout);
+                }
                 try {
                     base.evaluate();
                 } finally {
-                    containers.forEach(T::close);
+                    try {
+                        awaitStarting();
+                    } finally {
+                        try {
+                            delegate.stopAll(containers);
+                        } finally {
+                            containers.clear();
+                            if (pool != null) {
+                                pool.close();
+                                pool = null;
+                            }
+                        }
+                    }
                 }
             }
         };
     }
 
+    /**
+     * Starts a container, may be called from several threads at once.
+     */
     public T create() throws IOException, InterruptedException {
-        T container = image.start(delegate.type).start();
+        T container = pool != null ? pool.take() : start();
         containers.add(container);
         return container;
     }
 
+    private T start() throws IOException, InterruptedException {
+        if (starter == null) {
+            return delegate.start(image, null);
+        }
+        try {
+            return starter.call();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to start a container of " + delegate.type.getName(), e);
+        }
+    }
+
+    /**
+     * Starts a container in the background, with at most {@link Docker#START_PARALLELISM} containers starting at the same time.
+     * The container is closed after the tests like those from {@link #create()}, even if nobody waits for it.
+     */
+    public CompletableFuture<T> createAsync() {
+        CompletableFuture<T> container = Docker.supplyAsync(this::create, executor());
+        starting.add(container);
+        container.whenComplete((c, e) -> starting.remove(container));
+        return container;
+    }
+
+    /**
+     * Starts several containers concurrently, as {@link #createAsync()} does, and waits for all of them.
+     */
+    public List<T> createAll(int n) throws IOException, InterruptedException {
+        List<CompletableFuture<T>> futures = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            futures.add(createAsync());
+        }
+        List<T> started = new ArrayList<>();
+        for (CompletableFuture<T> f : futures) {
+            try {
+                started.add(f.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Failed to start a container of " + delegate.type.getName(), cause);
+            }
+        }
+        return started;
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Docker.START_PARALLELISM, new NamedThreadFactory("start"));
+        }
+        return executor;
+    }
+
+    /**
+     * Waits for containers still starting in the background, so that they are closed with the others.
+     */
+    private void awaitStarting() throws InterruptedException {
+        for (CompletableFuture<T> container : starting) {
+            try {
+                container.get();
+            } catch (ExecutionException e) {
+                // nothing to close
+            }
+        }
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
 }
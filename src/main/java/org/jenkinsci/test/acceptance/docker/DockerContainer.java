@@ -1,13 +1,17 @@
 package org.jenkinsci.test.acceptance.docker;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jenkinsci.utils.process.ProcessUtils;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 import static java.lang.String.*;
 
 /**
@@ -16,43 +20,146 @@ import static java.lang.String.*;
  * @author Kohsuke Kawaguchi
  */
 public class DockerContainer implements Closeable {
+    /**
+     * How long port lookups trust the {@linkplain #getState() snapshot} of a container whose output is still followed,
+     * in nanoseconds.
+     */
+    private static final long STATE_TTL = 10_000_000_000L;
+
     private String cid;
-    private Process p;
+    /**
+     * Following the logs, unless they are {@linkplain LogPump pumped} from the Engine API.
+     */
+    private /*@CheckForNull*/ Process p;
+    private Closeable logs;
+    private LogBuffer logBuffer;
     private File logfile;
-    private Thread shutdownHook;
+    /**
+     * Host ports reserved for this container by {@link PortAllocator}, if any.
+     */
+    private /*@CheckForNull*/ Closeable hostPorts;
+    private volatile boolean open;
+    private volatile ContainerState state;
+    /**
+     * When {@link #state} was taken, in {@link System#nanoTime()}.
+     */
+    private volatile long stateTaken;
 
     /* package */ void init(String cid, Process p, File logfile) {
+        init(cid, p, p::destroy, null, logfile);
+    }
+
+    /* package */ void init(String cid, /*@CheckForNull*/ Process p, Closeable logs, /*@CheckForNull*/ LogBuffer logBuffer, File logfile) {
         this.cid = cid;
         this.p = p;
+        this.logs = logs;
+        this.logBuffer = logBuffer;
         this.logfile = logfile;
-        shutdownHook = new Thread() {
-            @Override
-            public void run() {
-                shutdownHook = null;
-                close();
-            }
-        };
-        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        open = true;
+        // removed when the JVM exits unless closed before
+        Teardown.register(this);
 
         assertRunning();
     }
 
+    /* package */ void holdHostPorts(Closeable hostPorts) {
+        this.hostPorts = hostPorts;
+    }
+
+    /**
+     * Forgets this container once it is removed, letting other containers use its host ports.
+     */
+    /* package */ void removed() {
+        releaseHostPorts();
+        Teardown.unregister(this);
+    }
+
+    private void releaseHostPorts() {
+        if (hostPorts != null) {
+            try {
+                hostPorts.close();
+            } catch (IOException e) {
+                // only delays other containers
+            }
+            hostPorts = null;
+        }
+    }
+
+    /**
+     * Asks the daemon whether the container is still running, refreshing {@link #getState()}.
+     */
     public void assertRunning() {
         try {
-            JsonNode state = inspect().get("State");
+            assertRunning(refresh());
+        } catch (IOException e) {
+            throw new Error("The container is not running", e);
+        }
+    }
 
-            if (state.get("Status") != null && "running".equals(state.get("Status").asText())) {
-                return;
+    private static void assertRunning(ContainerState state) {
+        if (!state.isRunning()) {
+            throw new Error("The container is not running: " + state);
+        }
+    }
+
+    /**
+     * Details of the container as of when it was started, or last {@linkplain #refresh() refreshed}.
+     * Unlike {@link #inspect()}, this does not ask the daemon.
+     */
+    public ContainerState getState() {
+        ContainerState s = state;
+        if (s == null) {
+            try {
+                s = refresh();
+            } catch (IOException e) {
+                throw new Error("Failed to inspect " + cid, e);
             }
+        }
+        return s;
+    }
 
-            if (state.get("Running") != null && "true".equals(state.get("Running").asText())) {
-                return;
+    /**
+     * The {@linkplain #getState() snapshot} port and address lookups answer from, without asking the daemon as long as the
+     * output of the container is still followed and the snapshot is recent: the output ends when the container stops,
+     * which is then inspected again so that lookups fail with a clear error rather than hand out the ports of a dead container.
+     */
+    private ContainerState currentState() {
+        ContainerState s = getState();
+        if (s.isRunning() && (logsEnded() || System.nanoTime() - stateTaken > STATE_TTL)) {
+            try {
+                s = refresh();
+            } catch (IOException e) {
+                throw new Error("Failed to inspect " + cid, e);
             }
+        }
+        return s;
+    }
 
-            throw new Error("The container is not running: " + state.toString());
-        } catch (IOException e) {
-            throw new Error("The container is not running", e);
+    /**
+     * Whether the output of the container stopped being followed, as it does when the container stops.
+     */
+    private boolean logsEnded() {
+        if (logBuffer != null) {
+            return logBuffer.isClosed();
         }
+        return p == null || !p.isAlive();
+    }
+
+    /**
+     * Takes a new snapshot of the details of the container, for example after it was restarted.
+     */
+    public ContainerState refresh() throws IOException {
+        ContainerState s = new ContainerState(inspect());
+        stateTaken = System.nanoTime();
+        state = s;
+        return s;
+    }
+
+    /**
+     * Restores the state of a {@linkplain DockerRule#reused() reused} container before it is handed to another test,
+     * for example by deleting the data written by the previous one. Does nothing by default.
+     */
+    protected void reset() throws IOException, InterruptedException {
     }
 
     /**
@@ -76,83 +183,103 @@ public class DockerContainer implements Closeable {
         return logfile;
     }
 
+    /**
+     * Last lines output by the container, up to {@link Docker#LOG_BUFFER_SIZE} kilobytes.
+     */
+    public String getRecentLog() {
+        return logBuffer().tail();
+    }
+
+    /**
+     * Waits for the container to output a line matching a pattern, such as a message telling that a service is up.
+     * Lines output before are matched too, as long as they are still among the {@linkplain #getRecentLog() recent ones}.
+     *
+     * @return the matching line
+     * @throws IOException if the container stops or the timeout expires without such a line
+     */
+    public String waitForLog(Pattern pattern, Duration timeout) throws IOException, InterruptedException {
+        return logBuffer().waitFor(pattern, timeout);
+    }
+
+    private LogBuffer logBuffer() {
+        if (logBuffer == null) {
+            throw new IllegalStateException("The output of " + this + " is not captured");
+        }
+        return logBuffer;
+    }
+
+    /**
+     * PID of the {@code docker logs} process following the output of this container.
+     *
+     * @return -1 if the logs are followed through the Engine API rather than by a process
+     */
     public long getPid() {
-        return ProcessUtils.getPid(p);
+        return p != null ? ProcessUtils.getPid(p) : -1;
     }
 
     /**
      * Finds the ephemeral ip that the given container TCP port is bind to.
      */
     public String ipBound(int n) {
-        assertRunning();
-        try {
-            if (sharingHostDockerService()) {
+        if (sharingHostDockerService()) {
+            try {
                 return getIpAddress();
+            } catch (IOException e) {
+                throw new AssertionError("Failed to figure out port map " + n, e);
             }
-            String out = Docker.cmd("port").add(cid, n).popen().verifyOrDieWith("docker port command failed").trim();
-            if (out.isEmpty())  // expected to return single line like "0.0.0.0:55326" or [::]:55326
-                throw new IllegalStateException(format("Port %d is not mapped for container %s", n, cid));
-            // assumes it is published only in ipv6 or only in ipv4
-            return out.substring(0,out.lastIndexOf(":")).replaceAll("[\\[\\]]","");
-        } catch (IOException | InterruptedException e) {
-            throw new AssertionError("Failed to figure out port map " + n, e);
         }
+        return binding(n, "tcp").hostIp;
     }
 
     /**
      * Finds the ephemeral ip that the given container UDP port is bind to.
      */
     public String ipUdpBound(int n) {
-        assertRunning();
-        try {
-            if (sharingHostDockerService()) {
+        if (sharingHostDockerService()) {
+            try {
                 return getIpAddress();
+            } catch (IOException e) {
+                throw new AssertionError("Failed to figure out udp port map " + n, e);
             }
-            String out = Docker.cmd("port").add(cid, n + "/udp").popen().verifyOrDieWith("docker port command failed").trim();
-            if (out.isEmpty())  // expected to return single line like "0.0.0.0:55326" or [::]:55326
-                throw new IllegalStateException(format("Udp port %d is not mapped for container %s", n, cid));
-            return out.substring(0,out.lastIndexOf(":")).replaceAll("[\\[\\]]","");
-        } catch (IOException | InterruptedException e) {
-            throw new AssertionError("Failed to figure out udp port map " + n, e);
         }
+        return binding(n, "udp").hostIp;
     }
 
     /**
      * Finds the ephemeral port that the given container port is mapped to.
+     * Like the other port lookups, this answers from the snapshot taken when the container started,
+     * refreshed once the output of the container ends or ten seconds went by; use {@link #assertRunning()} to ask the daemon.
      */
     public int port(int n) {
-        assertRunning();
-        try {
-            if (sharingHostDockerService()) {
-                return n;
-            }
-            String out = Docker.cmd("port").add(cid, n).popen().verifyOrDieWith("docker port command failed").trim();
-            if (out.isEmpty())  // expected to return single line like "0.0.0.0:55326" or [::]:55326
-                throw new IllegalStateException(format("Port %d is not mapped for container %s", n, cid));
-
-            return Integer.parseInt(out.substring(out.lastIndexOf(":") + 1, out.length()));
-        } catch (IOException | InterruptedException e) {
-            throw new AssertionError("Failed to figure out port map " + n, e);
+        if (sharingHostDockerService()) {
+            assertRunning(currentState());
+            return n;
         }
+        return binding(n, "tcp").hostPort;
     }
 
     /**
      * Finds the ephemeral UDP port that the given container port is mapped to.
      */
     public int udpPort(int n) {
-        assertRunning();
-        try {
-            if (sharingHostDockerService()) {
-                return n;
-            }
-            String out = Docker.cmd("port").add(cid, n + "/udp").popen().verifyOrDieWith("docker port command failed").trim();
-            if (out.isEmpty())  // expected to return single line like "0.0.0.0:55326" or [::]:55326
-                throw new IllegalStateException(format("Udp port %d is not mapped for container %s", n, cid));
+        if (sharingHostDockerService()) {
+            assertRunning(currentState());
+            return n;
+        }
+        return binding(n, "udp").hostPort;
+    }
 
-            return Integer.parseInt(out.substring(out.lastIndexOf(":") + 1, out.length()));
-        } catch (IOException | InterruptedException e) {
-            throw new AssertionError("Failed to figure out udp port map " + n, e);
+    /**
+     * Finds where a port of this container is published on the host, according to {@link #currentState()}.
+     */
+    private ContainerState.PortBinding binding(int n, String protocol) {
+        ContainerState s = currentState();
+        assertRunning(s);
+        ContainerState.PortBinding b = s.getPortBinding(n, protocol, ipv6Enabled());
+        if (b == null) {
+            throw new IllegalStateException(format("%s %d is not mapped for container %s", protocol.equals("udp") ? "Udp port" : "Port", n, cid));
         }
+        return b;
     }
 
     /**
@@ -160,20 +287,71 @@ public class DockerContainer implements Closeable {
      */
     public void close() {
         try {
-            if (shutdownHook != null) {
-                p.destroy();
+            if (open) {
+                closeLogs();
                 // If container fail to start, this produces phone failure that presents container to be removed
-                int killStatus = Docker.cmd("kill").add(cid).build().start().waitFor();
-                Docker.cmd("rm").add(cid)
-                    .popen().verifyOrDieWith("Failed to rm " + cid + ". kill completed with " + killStatus);
-                Runtime.getRuntime().removeShutdownHook(shutdownHook);
-                shutdownHook = null;
+                String killStatus = "success";
+                try {
+                    Docker.transport().kill(cid);
+                } catch (IOException e) {
+                    killStatus = e.getMessage();
+                }
+                try {
+                    Docker.transport().remove(cid);
+                } catch (IOException e) {
+                    throw new IOException("Failed to rm " + cid + ". kill completed with " + killStatus, e);
+                }
+                open = false;
+                removed();
             }
         } catch (IOException | InterruptedException e) {
             throw new AssertionError("Failed to close down docker container " + cid, e);
         }
     }
 
+    /**
+     * Stops and removes the container without blocking, as {@link #close()} does, on {@link Docker#asyncExecutor()}.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        return Docker.supplyAsync(() -> {
+            close();
+            return null;
+        });
+    }
+
+    /**
+     * Stops and removes several containers, with as few requests to the daemon as possible.
+     * Containers of fixtures overriding {@link #close()} are closed one by one.
+     * With {@link Docker#ASYNC_TEARDOWN}, this returns without waiting for the containers to be removed.
+     */
+    public static void closeAll(Collection<? extends DockerContainer> containers) {
+        Teardown.closeAll(containers);
+    }
+
+    /**
+     * Stops following the logs of this container, leaving its removal to the caller,
+     * who then calls {@link #removed()}.
+     * Until then, the container is still removed when the JVM exits.
+     *
+     * @return the ID of the container to remove, or null if it was already closed
+     */
+    /* package */ String detach() {
+        if (!open) {
+            return null;
+        }
+        open = false;
+        closeLogs();
+        return cid;
+    }
+
+    private void closeLogs() {
+        try {
+            logs.close();
+        } catch (IOException e) {
+            // the container is going away anyway
+        }
+    }
+
     /**
      * Copies a file or folder from inside the container to the outside. Silently overwrites an existing file.
      *
@@ -193,9 +371,12 @@ public class DockerContainer implements Closeable {
             destFile.delete();
         }
         try {
-            Docker.cmd("cp").add(cid + ":" + from).add(new File(toPath))
-                    .popen().verifyOrDieWith(format("Failed to copy %s to %s", from, toPath));
-        } catch (IOException | InterruptedException e) {
+            Deadline.run(Docker.cmd("cp").add(cid + ":" + from).add(new File(toPath)),
+                    Duration.ofSeconds(Docker.RUN_TIMEOUT), format("Failed to copy %s to %s", from, toPath));
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
 
@@ -208,18 +389,30 @@ public class DockerContainer implements Closeable {
      * Provides details of this container.
      */
     public JsonNode inspect() throws IOException {
-        return new ObjectMapper().readTree(Docker.cmd("inspect").add(cid).popen().withErrorCheck()).get(0);
+        JsonNode details;
+        try {
+            details = Docker.transport().inspectContainer(cid);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while inspecting " + cid);
+        }
+        if (details == null) {
+            throw new IOException("No such container: " + cid);
+        }
+        return details;
     }
 
     /**
-     * IP address of this container reachable through the bridge.
+     * IP address of this container reachable through the bridge, empty once the container stopped.
      */
     public String getIpAddress() throws IOException {
-        String ipLabel = ipv6Enabled() ? "GlobalIPv6Address" : "IPAddress";
-        if (System.getenv("DOCKER_FIXTURES_NETWORK") != null) {
-            return inspect().get("NetworkSettings").get("Networks").get(System.getenv("DOCKER_FIXTURES_NETWORK")).get(ipLabel).asText();
+        String network = System.getenv("DOCKER_FIXTURES_NETWORK");
+        ContainerState s = currentState();
+        String ip = s.getIpAddress(network, ipv6Enabled());
+        if (ip == null) {
+            throw new IOException("No " + (ipv6Enabled() ? "IPv6" : "IPv4") + " address for container " + cid + (network != null ? " in network " + network : ""));
         }
-        return inspect().get("NetworkSettings").get(ipLabel).asText();
+        return ip;
     }
 
     @Override
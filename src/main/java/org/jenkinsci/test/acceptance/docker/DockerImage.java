@@ -1,13 +1,25 @@
 package org.jenkinsci.test.acceptance.docker;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang3.SystemUtils;
 import org.jenkinsci.utils.process.CommandBuilder;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.URI;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Container image, a template to launch virtual machines from.
@@ -19,6 +31,7 @@ public class DockerImage {
     public static final String DEFAULT_DOCKER_HOST = InetAddress.getLoopbackAddress().getHostAddress();
     public final String tag;
     static DockerHostResolver dockerHostResolver = new DockerHostResolver();
+    private static final ThreadFactory LOG_COPIERS = new NamedThreadFactory("logs-copy");
 
     public DockerImage(String tag) {
         this.tag = tag;
@@ -76,73 +89,136 @@ public class DockerImage {
     }
 
     private <T extends DockerContainer> T start(Starter starter, Class<T> type) throws InterruptedException, IOException {
+        // tells which container to remove when docker run fails after creating it
+        File cidfile = File.createTempFile("docker-run", ".cid");
+        Files.delete(cidfile.toPath());
+        File logfile = starter.log;
+
+        RetryPolicy retry = new RetryPolicy("docker run " + tag);
+        String cid;
+        PortAllocator.Lease hostPorts;
+        try {
+            while (true) {
+                // allocated again on each attempt, as the daemon may tell that the ports are already in use
+                hostPorts = starter.reserveHostPorts();
+                CommandBuilder docker = runCommand(starter, cidfile, hostPorts != null ? hostPorts.offset() : null);
+                if (logfile != null) {
+                    System.out.printf("Launching Docker container `%s`: logfile will be at %s\n", docker.toString(), logfile);
+                } else {
+                    System.out.printf("Launching Docker container `%s`\n", docker.toString());
+                }
+                try {
+                    Process p = docker.build()
+                            .redirectInput(new File(SystemUtils.IS_OS_WINDOWS ? "NUL": "/dev/null"))
+                            .redirectErrorStream(true)
+                            .start();
+                    cid = waitForCid(docker, p);
+                    break;
+                } catch (IOException | InterruptedException e) {
+                    removeHalfCreated(cidfile);
+                    if (hostPorts != null) {
+                        hostPorts.close();
+                    }
+                    if (e instanceof InterruptedException || !retry.retry(e.getMessage())) {
+                        // perhaps because the image is gone, which the next build should notice
+                        Docker.recheckPresence(tag);
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(cidfile.toPath());
+        }
+
+        LogBuffer buffer = new LogBuffer(Docker.LOG_BUFFER_SIZE * 1024);
+        OutputStream out = logfile != null ? new FileOutputStream(logfile) : CloseShieldOutputStream.wrap(System.out);
+        OutputStream sink = new TeeOutputStream(out, buffer);
+        Process logProcess = null;
+        Closeable logs;
+        try {
+            DockerTransport transport = Docker.transport();
+            if (transport instanceof EngineApiTransport) {
+                logs = ((EngineApiTransport) transport).followLogs(cid, sink);
+            } else {
+                logProcess = Docker.cmd("logs")
+                        .add("-f")
+                        .add(cid)
+                        .build()
+                        .redirectInput(new File(SystemUtils.IS_OS_WINDOWS ? "NUL": "/dev/null"))
+                        .redirectErrorStream(true)
+                        .start();
+                Process lp = logProcess;
+                String id = cid;
+                LOG_COPIERS.newThread(() -> {
+                    try (OutputStream s = sink) {
+                        IOUtils.copy(lp.getInputStream(), s);
+                    } catch (IOException x) {
+                        LOGGER.log(Level.WARNING, "Failed to copy the logs of " + id, x);
+                    }
+                }).start();
+                logs = lp::destroy;
+            }
+        } catch (IOException e) {
+            sink.close();
+            throw e;
+        }
+
+        try {
+            T t = type.newInstance();
+            if (hostPorts != null) {
+                t.holdHostPorts(hostPorts);
+            }
+            t.init(cid, logProcess, logs, buffer, logfile);
+            return t;
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+
+    private CommandBuilder runCommand(Starter starter, File cidfile, /*@CheckForNull*/ Integer portOffset) {
         CommandBuilder docker = Docker.cmd("run");
         docker.add("-d");
+        docker.add("--cidfile", cidfile.getPath());
         if (starter.network != null) {
             docker.add("--network", starter.network);
         }
         for (int p : starter.ports) {
-            docker.add("-p", starter.getPortMapping(p));
+            docker.add("-p", starter.getPortMapping(p, portOffset));
         }
 
         for (int udpPort : starter.udpPorts) {
-            docker.add("-p", starter.getUdpPortMapping(udpPort));
+            docker.add("-p", starter.getUdpPortMapping(udpPort, portOffset));
         }
 
         docker.add(starter.options);
         docker.add(tag);
         docker.add(starter.args);
+        return docker;
+    }
 
-        File logfile = starter.log;
-
-        if (logfile != null) {
-            System.out.printf("Launching Docker container `%s`: logfile will be at %s\n", docker.toString(), logfile);
-        } else {
-            System.out.printf("Launching Docker container `%s`\n", docker.toString());
-        }
-
-        Process p = docker.build()
-                .redirectInput(new File(SystemUtils.IS_OS_WINDOWS ? "NUL": "/dev/null"))
-                .redirectErrorStream(true)
-                .start();
-
-
-        String cid = waitForCid(docker, p);
-
-        ProcessBuilder logProcessBuilder = Docker.cmd("logs")
-                .add("-f")
-                .add(cid)
-                .build()
-                .redirectInput(new File(SystemUtils.IS_OS_WINDOWS ? "NUL": "/dev/null"))
-                .redirectErrorStream(true);
-        if (logfile != null) {
-            logProcessBuilder.redirectOutput(logfile);
-        }
-        Process logProcess = logProcessBuilder.start();
-        if (logfile == null) {
-            new Thread(() -> {
-                try {
-                    IOUtils.copy(logProcess.getInputStream(), System.out);
-                } catch (IOException x) {
-                    x.printStackTrace();
-                }
-            }).start();
+    /**
+     * Removes the container a failed {@code docker run} may have created, so that it neither leaks nor holds its ports.
+     */
+    private static void removeHalfCreated(File cidfile) throws InterruptedException, IOException {
+        if (!cidfile.exists()) {
+            return;
         }
-
-        try {
-            T t = type.newInstance();
-            t.init(cid, logProcess, logfile);
-            return t;
-        } catch (ReflectiveOperationException e) {
-            throw new Error(e);
+        String cid = Files.readString(cidfile.toPath()).trim();
+        Files.delete(cidfile.toPath());
+        if (!cid.isEmpty()) {
+            try {
+                Teardown.remove(List.of(cid));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove container " + cid + " left by a failed docker run", e);
+            }
         }
     }
 
     private String waitForCid(CommandBuilder docker, Process p) throws InterruptedException, IOException {
 
-        String output = IOUtils.toString(p.getInputStream());
+        String output = Deadline.output(p, Duration.ofSeconds(Docker.RUN_TIMEOUT), docker);
 
-        if (p.waitFor() != 0) {
+        if (p.exitValue() != 0) {
             throw new IOException("docker died unexpectedly with return code " + p.exitValue() + 
                                    " : " + docker + "\n" + output);
         }
@@ -188,10 +264,13 @@ public class DockerImage {
         private CommandBuilder args;
         private String ipAddress = getDockerHost();
         private Integer portOffset;
+        private boolean allocatePortOffset;
         private int[] ports;
         private int[] udpPorts;
         private File log;
         private String network;
+        private WaitStrategy waitStrategy;
+        private Duration startupTimeout = Duration.ofSeconds(60);
 
         public Starter(Class<T> type, DockerImage image) {
             this.type = type;
@@ -216,8 +295,27 @@ public class DockerImage {
             return this;
         }
 
+        /**
+         * Publishes each container port on the host port at this offset from it, waiting for other containers of this JVM,
+         * or of other processes on the same machine, to release these host ports if needed.
+         */
         public /*@Nonnull*/ Starter<T> withPortOffset(Integer portOffset) {
             this.portOffset = portOffset;
+            this.allocatePortOffset = false;
+            return this;
+        }
+
+        /**
+         * Publishes each container port on the host port at some offset from it, picked so that they are free,
+         * for fixtures which need their ports to keep the same layout on the host yet can run alongside others.
+         * {@link DockerContainer#port(int)} tells which host port a container port ended up on.
+         *
+         * @see Docker#MIN_ALLOCATED_PORT
+         * @see Docker#MAX_ALLOCATED_PORT
+         */
+        public /*@Nonnull*/ Starter<T> withAllocatedPortOffset() {
+            this.portOffset = null;
+            this.allocatePortOffset = true;
             return this;
         }
 
@@ -243,11 +341,57 @@ public class DockerImage {
             return this;
         }
 
+        /**
+         * Makes {@link #start()} wait until the container is ready, rather than only running.
+         */
+        public /*@Nonnull*/ Starter<T> waitingFor(WaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        /**
+         * How long to wait for the container to be ready, one minute by default.
+         */
+        public /*@Nonnull*/ Starter<T> withStartupTimeout(Duration startupTimeout) {
+            this.startupTimeout = startupTimeout;
+            return this;
+        }
+
         public /*@Nonnull*/ T start() throws InterruptedException, IOException {
-            return image.start(this, type);
+            T container = image.start(this, type);
+            if (waitStrategy != null) {
+                try {
+                    waitStrategy.waitUntilReady(container, startupTimeout);
+                } catch (IOException | InterruptedException | RuntimeException | Error e) {
+                    try {
+                        container.close();
+                    } catch (RuntimeException | Error x) {
+                        e.addSuppressed(x);
+                    }
+                    throw e;
+                }
+            }
+            return container;
         }
 
-        private String getPortMapping(int port) {
+        /**
+         * Starts the container without blocking, as {@link #start()} does, on {@link Docker#asyncExecutor()}.
+         */
+        public /*@Nonnull*/ CompletableFuture<T> startAsync() {
+            return Docker.supplyAsync(this::start);
+        }
+
+        private /*@CheckForNull*/ PortAllocator.Lease reserveHostPorts() throws IOException, InterruptedException {
+            if (allocatePortOffset) {
+                return PortAllocator.allocate(ports, udpPorts);
+            }
+            if (portOffset != null) {
+                return PortAllocator.reserve(portOffset, ports, udpPorts, Duration.ofSeconds(Docker.RUN_TIMEOUT));
+            }
+            return null;
+        }
+
+        private String getPortMapping(int port, /*@CheckForNull*/ Integer portOffset) {
             // docker command needs ipv6 addresses in brackets
             return portOffset == null
                     ? addBracketsIfNeeded(ipAddress) + "::" + port
@@ -255,7 +399,7 @@ public class DockerImage {
             ;
         }
 
-        private String getUdpPortMapping(int udpPort) {
+        private String getUdpPortMapping(int udpPort, /*@CheckForNull*/ Integer portOffset) {
             return portOffset == null
                     ? addBracketsIfNeeded(ipAddress) + "::" + udpPort + "/udp"
                     : addBracketsIfNeeded(ipAddress) + ":" + (portOffset + udpPort) + ":" + udpPort + "/udp";
@@ -265,4 +409,6 @@ public class DockerImage {
             return DockerContainer.ipv6Enabled() && !ipAddress.contains("[") ? String.format("[%s]", ipAddress) : ipAddress;
         }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerImage.class.getName());
 }
@@ -27,6 +27,9 @@ package org.jenkinsci.test.acceptance.docker;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import org.junit.AssumptionViolatedException;
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
@@ -40,8 +43,12 @@ public final class DockerRule<T extends DockerContainer> implements TestRule {
 
     final Class<T> type;
     private boolean localOnly;
+    WaitStrategy waitStrategy;
+    boolean reused;
+    private boolean eager;
     private T container;
     private File runlog;
+    private CompletableFuture<T> starting;
 
     public DockerRule(Class<T> type) {
         this.type = type;
@@ -52,6 +59,71 @@ public final class DockerRule<T extends DockerContainer> implements TestRule {
         return this;
     }
 
+    /**
+     * Builds and starts the container in the background as soon as the test begins, rather than on first call to {@link #get()},
+     * so that it boots while other rules and {@code @Before} methods set up the test.
+     */
+    public DockerRule<T> eager() {
+        eager = true;
+        return this;
+    }
+
+    /**
+     * Waits for containers to be ready when starting them.
+     */
+    public DockerRule<T> waitingFor(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * Shares one container with all other tests of the JVM reusing the same fixture,
+     * rather than starting a new one for this test.
+     * The container is {@linkplain DockerContainer#reset() reset} before each test,
+     * and kept running after the last one as configured by {@link Docker#SHARED_CONTAINER_LINGER}.
+     */
+    public DockerRule<T> reused() {
+        reused = true;
+        return this;
+    }
+
+    /**
+     * Starts a container for a test, or gets the shared one.
+     */
+    T start(DockerImage image, /*@CheckForNull*/ File log) throws IOException, InterruptedException {
+        if (reused) {
+            return SharedContainers.acquire(type, image, () -> {
+                // the log outlives this test
+                File sharedLog = File.createTempFile("docker-" + type.getSimpleName() + "-shared", ".log");
+                sharedLog.deleteOnExit();
+                return image.start(type).withLog(sharedLog).waitingFor(waitStrategy).start();
+            });
+        }
+        return image.start(type).withLog(log).waitingFor(waitStrategy).start();
+    }
+
+    /**
+     * Closes a container started by {@link #start}, or releases the shared one.
+     */
+    void stop(T container) {
+        if (reused) {
+            SharedContainers.release(container);
+        } else {
+            DockerContainer.closeAll(List.of(container));
+        }
+    }
+
+    /**
+     * Closes containers started by {@link #start} at once, or releases the shared one.
+     */
+    void stopAll(List<T> containers) {
+        if (reused) {
+            containers.forEach(SharedContainers::release);
+        } else {
+            DockerContainer.closeAll(containers);
+        }
+    }
+
     DockerImage build() throws IOException, InterruptedException {
         // Adapted from WithDocker:
         Docker docker = new Docker();
@@ -70,34 +142,80 @@ public final class DockerRule<T extends DockerContainer> implements TestRule {
 
     public T get() throws IOException, InterruptedException {
         if (container == null) {
-            DockerImage image = build();
-            runlog = File.createTempFile("docker-" + type.getSimpleName() + "-run", ".log");
-            container = image.start(type).withLog(runlog).start();
+            container = starting != null ? await() : start();
         }
         return container;
     }
 
+    private T start() throws IOException, InterruptedException {
+        DockerImage image = build();
+        if (reused) {
+            return start(image, null);
+        }
+        runlog = File.createTempFile("docker-" + type.getSimpleName() + "-run", ".log");
+        return start(image, runlog);
+    }
+
+    /**
+     * Waits for the container started by {@link #eager()}, failing as starting it did.
+     */
+    private T await() throws IOException, InterruptedException {
+        try {
+            return starting.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to start " + type.getName(), cause);
+        } finally {
+            starting = null;
+        }
+    }
+
     // Mixture of logic from ExternalResource and TestWatcher
     @Override
     public Statement apply(final Statement base, Description description) {
         return new Statement() {
             @Override
             public void evaluate() throws Throwable {
+                if (eager) {
+                    starting = Docker.supplyAsync(DockerRule.this::start);
+                }
                 try {
                     base.evaluate();
                 } catch (AssumptionViolatedException e) {
                     throw e;
                 } catch (Throwable t) {
-                    Docker.dump(runlog);
+                    if (container != null) {
+                        Docker.dump(container);
+                    }
                     throw t;
                 } finally {
+                    if (starting != null) {
+                        // not used by the test, but still to be closed
+                        try {
+                            container = await();
+                        } catch (Exception e) {
+                            // failed to start, nothing to close
+                        }
+                    }
                     if (runlog != null) {
                         runlog.delete();
                         runlog = null;
                     }
                     // From DockerContainerHolder:
                     if (container != null) {
-                        container.close();
+                        stop(container);
                         container = null;
                     }
                 }
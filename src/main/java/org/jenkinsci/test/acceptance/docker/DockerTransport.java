@@ -0,0 +1,75 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Way of talking to the Docker daemon for short requests, which fixtures make many times while running.
+ * <p>
+ * The default implementation, selected by {@link Docker#transport()}, sends HTTP requests to the Engine API socket when
+ * it can reach the same daemon as the {@code docker} command, and forks the {@code docker} command otherwise.
+ * Starting containers, copying files and building images always use the {@code docker} command.
+ */
+public interface DockerTransport {
+
+    /**
+     * Checks if the daemon responds.
+     */
+    boolean ping();
+
+    /**
+     * Provides details of a container, as {@code docker inspect} does.
+     *
+     * @return null if there is no such container
+     */
+    /*@CheckForNull*/ JsonNode inspectContainer(String cid) throws IOException, InterruptedException;
+
+    /**
+     * Provides details of a local image, as {@code docker image inspect} does.
+     *
+     * @return null if there is no such image
+     */
+    /*@CheckForNull*/ JsonNode inspectImage(String tag) throws IOException, InterruptedException;
+
+    /**
+     * Kills a container.
+     *
+     * @throws IOException if the container does not exist or is not running
+     */
+    void kill(String cid) throws IOException, InterruptedException;
+
+    /**
+     * Removes a stopped container.
+     */
+    void remove(String cid) throws IOException, InterruptedException;
+
+    /**
+     * Removes containers at once, killing those still running, as {@code docker rm -f} does.
+     * Kills and removes them one after another by default.
+     *
+     * @throws IOException if some containers could not be removed, once all were tried
+     */
+    default void removeAll(Collection<String> cids) throws IOException, InterruptedException {
+        IOException failure = null;
+        for (String cid : cids) {
+            try {
+                try {
+                    kill(cid);
+                } catch (IOException e) {
+                    // not running
+                }
+                remove(cid);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new IOException("Failed to remove some containers");
+                }
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
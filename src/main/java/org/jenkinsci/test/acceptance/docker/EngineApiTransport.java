@@ -0,0 +1,350 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DockerTransport} sending HTTP requests to the Docker Engine API, over its Unix socket or plain TCP.
+ * <p>
+ * Every request uses a new connection, which is cheap for a local socket, and much cheaper than forking {@code docker}.
+ */
+final class EngineApiTransport implements DockerTransport {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String DEFAULT_SOCKET = "/var/run/docker.sock";
+
+    /**
+     * Removes containers concurrently, as the daemon spends most of the time of each removal waiting for the container to stop.
+     */
+    private static final ThreadPoolExecutor REMOVALS = new ThreadPoolExecutor(8, 8, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("rm"));
+
+    static {
+        REMOVALS.allowCoreThreadTimeOut(true);
+    }
+
+    private final SocketAddress address;
+
+    EngineApiTransport(SocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Finds the Engine API endpoint of the daemon the {@code docker} command talks to.
+     *
+     * @param env             environment variables, such as {@code DOCKER_HOST}
+     * @param dockerConfigDir directory of the {@code docker} command configuration, usually {@code ~/.docker}
+     * @return null if the endpoint cannot be determined or needs more than plain HTTP, for example TLS or SSH
+     */
+    static /*@CheckForNull*/ EngineApiTransport detect(Map<String, String> env, File dockerConfigDir) {
+        if (!isDefaultContext(env.get("DOCKER_CONTEXT"))) {
+            return null;
+        }
+        File config = new File(dockerConfigDir, "config.json");
+        if (env.get("DOCKER_HOST") == null && config.isFile()) {
+            try {
+                if (!isDefaultContext(MAPPER.readTree(config).path("currentContext").asText(null))) {
+                    return null;
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        URI host = URI.create(env.getOrDefault("DOCKER_HOST", "unix://" + DEFAULT_SOCKET));
+        String scheme = host.getScheme() == null ? "" : host.getScheme().toLowerCase(Locale.ENGLISH);
+        switch (scheme) {
+        case "unix":
+            File socket = new File(host.getPath());
+            return socket.exists() ? new EngineApiTransport(UnixDomainSocketAddress.of(socket.toPath())) : null;
+        case "tcp":
+            String tls = env.get("DOCKER_TLS_VERIFY");
+            if (tls != null && !tls.isEmpty() || host.getHost() == null) {
+                return null;
+            }
+            return new EngineApiTransport(new InetSocketAddress(host.getHost(), host.getPort() == -1 ? 2375 : host.getPort()));
+        default:
+            return null;
+        }
+    }
+
+    private static boolean isDefaultContext(/*@CheckForNull*/ String context) {
+        return context == null || context.isEmpty() || context.equals("default");
+    }
+
+    @Override
+    public boolean ping() {
+        try {
+            return request("GET", "/_ping").status == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public JsonNode inspectContainer(String cid) throws IOException {
+        return inspect("/containers/" + encode(cid, "") + "/json");
+    }
+
+    @Override
+    public JsonNode inspectImage(String tag) throws IOException {
+        return inspect("/images/" + encode(tag, "/") + "/json");
+    }
+
+    /**
+     * Percent-encodes a container ID or image reference for a request path,
+     * as references may hold a registry port, a tag and a digest.
+     *
+     * @param safe characters to leave as they are besides unreserved ones, such as the {@code /} of repository names
+     */
+    static String encode(String s, String safe) {
+        StringBuilder b = new StringBuilder();
+        for (byte c : s.getBytes(StandardCharsets.UTF_8)) {
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || "-._~".indexOf(c) >= 0 || safe.indexOf(c) >= 0) {
+                b.append((char) c);
+            } else {
+                b.append('%').append(String.format("%02X", c & 0xFF));
+            }
+        }
+        return b.toString();
+    }
+
+    private JsonNode inspect(String path) throws IOException {
+        Response r = request("GET", path);
+        if (r.status == 404) {
+            return null;
+        }
+        return MAPPER.readTree(r.check(path));
+    }
+
+    @Override
+    public void kill(String cid) throws IOException {
+        request("POST", "/containers/" + encode(cid, "") + "/kill").check("kill " + cid);
+    }
+
+    @Override
+    public void remove(String cid) throws IOException {
+        request("DELETE", "/containers/" + encode(cid, "")).check("rm " + cid);
+    }
+
+    @Override
+    public void removeAll(Collection<String> cids) throws IOException, InterruptedException {
+        List<Future<Void>> removals = new ArrayList<>();
+        for (String cid : cids) {
+            removals.add(REMOVALS.submit(() -> {
+                Response r = request("DELETE", "/containers/" + encode(cid, "") + "?force=true");
+                if (r.status != 404) {
+                    r.check("rm -f " + cid);
+                }
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for (Future<Void> removal : removals) {
+            try {
+                removal.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new IOException("Failed to remove some containers");
+                }
+                failure.addSuppressed(e.getCause());
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Copies the output of a container to a sink from now on, without a thread or process of its own.
+     *
+     * @param sink closed once the container stops, or the returned handle is closed; written from a thread of the pump, so a slow sink only holds back the logs of this container
+     * @see LogPump
+     */
+    Closeable followLogs(String cid, OutputStream sink) throws IOException {
+        SocketChannel ch = send("GET", "/containers/" + encode(cid, "") + "/logs?follow=true&stdout=true&stderr=true");
+        try {
+            return LogPump.get().follow(ch, cid, sink);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request and reads the response, closing the connection if the daemon does not answer in time.
+     * The request is aborted as well if the thread is interrupted.
+     */
+    Response request(String method, String path) throws IOException {
+        Duration timeout = Duration.ofSeconds(Docker.REQUEST_TIMEOUT);
+        SocketChannel channel = open();
+        try (SocketChannel ch = channel; Deadline.Watch watch = Deadline.closeAfter(ch, timeout)) {
+            try {
+                send(ch, method, path);
+                return Response.read(new BufferedInputStream(Channels.newInputStream(ch)));
+            } catch (ClosedChannelException e) {
+                if (watch.expired()) {
+                    throw Deadline.timedOut(method + " " + path, timeout);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private SocketChannel send(String method, String path) throws IOException {
+        SocketChannel ch = open();
+        try {
+            send(ch, method, path);
+            return ch;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private SocketChannel open() throws IOException {
+        return address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+    }
+
+    private void send(SocketChannel ch, String method, String path) throws IOException {
+        ch.connect(address);
+        OutputStream out = Channels.newOutputStream(ch);
+        out.write((method + " " + path + " HTTP/1.1\r\n"
+                + "Host: docker\r\n"
+                + "Connection: close\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return "Docker Engine API at " + address;
+    }
+
+    static final class Response {
+        final int status;
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /**
+         * Gets the body of a successful response.
+         *
+         * @throws IOException with the message of the daemon otherwise
+         */
+        byte[] check(String what) throws IOException {
+            if (status / 100 != 2) {
+                String message = new String(body, StandardCharsets.UTF_8);
+                try {
+                    message = MAPPER.readTree(body).path("message").asText(message);
+                } catch (IOException e) {
+                    // not JSON, keep it as is
+                }
+                throw new IOException("Docker Engine API request for " + what + " failed with status " + status + ": " + message.trim());
+            }
+            return body;
+        }
+
+        static Response read(InputStream in) throws IOException {
+            String statusLine = readLine(in);
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Unexpected response from the Docker daemon: " + statusLine);
+            }
+            int status = Integer.parseInt(parts[1]);
+            long length = -1;
+            boolean chunked = false;
+            for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                String value = header.substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equals("transfer-encoding") && value.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+                    chunked = true;
+                }
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (chunked) {
+                for (long size = chunkSize(in); size > 0; size = chunkSize(in)) {
+                    copy(in, body, size);
+                    readLine(in);
+                }
+            } else if (length >= 0) {
+                copy(in, body, length);
+            } else {
+                in.transferTo(body);
+            }
+            return new Response(status, body.toByteArray());
+        }
+
+        private static long chunkSize(InputStream in) throws IOException {
+            String line = readLine(in);
+            int ext = line.indexOf(';');
+            return Long.parseLong((ext < 0 ? line : line.substring(0, ext)).trim(), 16);
+        }
+
+        private static void copy(InputStream in, OutputStream out, long size) throws IOException {
+            byte[] buf = new byte[8192];
+            while (size > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, size));
+                if (n < 0) {
+                    throw new EOFException("Response from the Docker daemon ended early");
+                }
+                out.write(buf, 0, n);
+                size -= n;
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException("Response from the Docker daemon ended early");
+                }
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+
+/**
+ * Directory of image tarballs written by {@code docker save}, named {@code <id>-<version>.tar} after the fixture id and
+ * the tag of its image, so that hosts without network access can {@code docker load} images rather than
+ * building them.
+ * <p>
+ * The total size of the tarballs is bounded by evicting the least recently used ones.
+ */
+final class ImageArchiveCache {
+
+    private final File dir;
+    private final long maxSize;
+
+    /**
+     * @param maxSize total size of the tarballs to keep, in bytes
+     */
+    ImageArchiveCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    File archive(String id, String hash) {
+        return new File(dir, id.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + hash + ".tar");
+    }
+
+    /**
+     * Loads the saved image of a fixture, if any.
+     *
+     * @param log Log file to store the output of {@code docker load}
+     * @return true if an image was loaded
+     */
+    boolean load(String id, String hash, /*@CheckForNull*/ File log) throws IOException, InterruptedException {
+        File archive = archive(id, hash);
+        if (!archive.isFile()) {
+            return false;
+        }
+        System.out.println("Loading Docker image from " + archive);
+        if (run(Docker.cmd("load", "-i", archive.getPath()).build(), log) != 0) {
+            // most likely truncated, save it again after building
+            LOGGER.warning(() -> "Failed to load " + archive + ", deleting it");
+            Files.deleteIfExists(archive.toPath());
+            return false;
+        }
+        // mark as recently used
+        archive.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Saves the image of a fixture, then evicts old tarballs if the cache grew too large.
+     *
+     * @param log Log file to store the output of {@code docker save}
+     */
+    void save(String id, String hash, String fullTag, /*@CheckForNull*/ File log) throws IOException, InterruptedException {
+        File archive = archive(id, hash);
+        Files.createDirectories(dir.toPath());
+        File tmp = File.createTempFile(archive.getName(), ".tmp", dir);
+        try {
+            System.out.println("Saving Docker image " + fullTag + " to " + archive);
+            if (run(Docker.cmd("save", "-o", tmp.getPath(), fullTag).build(), log) != 0) {
+                LOGGER.warning(() -> "Failed to save " + fullTag + " to " + archive);
+                return;
+            }
+            try {
+                Files.move(tmp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        evict(archive);
+    }
+
+    /**
+     * Deletes the least recently used tarballs until the total size fits, always keeping the given one.
+     */
+    void evict(File keep) {
+        File[] archives = dir.listFiles((d, name) -> name.endsWith(".tar"));
+        if (archives == null) {
+            return;
+        }
+        long total = 0;
+        for (File a : archives) {
+            total += a.length();
+        }
+        Arrays.sort(archives, Comparator.comparingLong(File::lastModified));
+        for (File a : archives) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (a.equals(keep)) {
+                continue;
+            }
+            long size = a.length();
+            if (a.delete()) {
+                LOGGER.fine(() -> "Evicted " + a);
+                total -= size;
+            }
+        }
+    }
+
+    private static int run(ProcessBuilder pb, /*@CheckForNull*/ File log) throws IOException, InterruptedException {
+        pb.redirectErrorStream(true);
+        if (log != null) {
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+        } else {
+            pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        }
+        return Deadline.waitFor(pb.start(), Duration.ofSeconds(Docker.BUILD_TIMEOUT), String.join(" ", pb.command()));
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ImageArchiveCache.class.getName());
+}
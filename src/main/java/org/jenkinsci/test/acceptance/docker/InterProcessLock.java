@@ -0,0 +1,119 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Mutual exclusion between threads and JVMs on the same machine, such as parallel Surefire forks, backed by a lock file.
+ * <p>
+ * The operating system releases the lock when its owner dies. A live owner holding it for longer than the stale timeout,
+ * for example a hung fork, is assumed to be stuck and is ignored.
+ */
+final class InterProcessLock implements Closeable {
+
+    /**
+     * Serializes threads of this JVM, as file locks are held on behalf of the whole JVM.
+     */
+    private static final ConcurrentMap<String, Semaphore> LOCAL = new ConcurrentHashMap<>();
+
+    // all null when proceeding without the lock
+    private final Semaphore local;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private InterProcessLock(Semaphore local, FileChannel channel, FileLock lock) {
+        this.local = local;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Waits for the lock.
+     *
+     * @param file         the lock file, created if needed
+     * @param staleTimeout how long to wait for the current owner before ignoring it, in milliseconds
+     * @param what         what the lock protects, for diagnostics
+     */
+    static InterProcessLock acquire(File file, long staleTimeout, String what) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(staleTimeout);
+        Semaphore local = LOCAL.computeIfAbsent(file.getAbsolutePath(), k -> new Semaphore(1));
+        if (!local.tryAcquire(staleTimeout, TimeUnit.MILLISECONDS)) {
+            LOGGER.warning(() -> "Waited more than " + staleTimeout + "ms for another thread to release the lock for " + what + ", proceeding without it");
+            return new InterProcessLock(null, null, null);
+        }
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long sleep = 50;
+            boolean announced = false;
+            while (true) {
+                FileLock lock = channel.tryLock();
+                if (lock != null) {
+                    channel.truncate(0);
+                    channel.write(ByteBuffer.wrap(ManagementFactory.getRuntimeMXBean().getName().getBytes(StandardCharsets.UTF_8)), 0);
+                    return new InterProcessLock(local, channel, lock);
+                }
+                if (System.nanoTime() > deadline) {
+                    LOGGER.warning(() -> "Waited more than " + staleTimeout + "ms for " + owner(file) + " to release the lock for " + what + ", proceeding without it");
+                    return new InterProcessLock(local, channel, null);
+                }
+                if (!announced) {
+                    LOGGER.info(() -> "Waiting for " + owner(file) + " to release the lock for " + what);
+                    announced = true;
+                }
+                Thread.sleep(sleep);
+                sleep = Math.min(sleep * 2, 1000);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            local.release();
+            throw e;
+        }
+    }
+
+    private static String owner(File file) {
+        try {
+            return "process " + new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            // some platforms do not allow reading a locked file
+            return "another process";
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to release lock", e);
+        } finally {
+            if (local != null) {
+                local.release();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InterProcessLock.class.getName());
+}
@@ -0,0 +1,68 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Entries of a jar file sorted by name, so that the files of a fixture can be found without scanning the whole jar.
+ * <p>
+ * Indexes are built once per JVM and rebuilt when the jar file is modified. They do not keep the jar open, which would lock it on Windows:
+ * readers open it themselves, as {@link BuildContext.Packaged} does.
+ */
+final class JarIndex {
+
+    private static final Map<File, JarIndex> INDEXES = new HashMap<>();
+
+    private final File jar;
+    private final long lastModified;
+    private final long length;
+    private final NavigableMap<String, JarEntry> entries = new TreeMap<>();
+
+    private JarIndex(File jar) throws IOException {
+        this.jar = jar;
+        this.lastModified = jar.lastModified();
+        this.length = jar.length();
+        try (JarFile jarFile = new JarFile(jar)) {
+            Enumeration<JarEntry> e = jarFile.entries();
+            while (e.hasMoreElements()) {
+                JarEntry je = e.nextElement();
+                entries.put(je.getName(), je);
+            }
+        }
+    }
+
+    /**
+     * Gets the up to date index of a jar file.
+     */
+    static JarIndex of(File jar) throws IOException {
+        File key = jar.getAbsoluteFile();
+        synchronized (INDEXES) {
+            JarIndex index = INDEXES.get(key);
+            if (index == null || index.lastModified != key.lastModified() || index.length != key.length()) {
+                // the previous index may still be used by other threads, which is fine as it holds no resources
+                index = new JarIndex(key);
+                INDEXES.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Lists the entries whose name starts with the given prefix, such as {@code org/acme/FooContainer/}.
+     */
+    SortedMap<String, JarEntry> entriesUnder(String prefix) {
+        return entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,161 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the last lines written by a container, and tells waiters about lines matching their pattern as they come.
+ */
+final class LogBuffer extends OutputStream {
+    private final int capacity;
+    private final Deque<String> lines = new ArrayDeque<>();
+    private int size;
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param capacity number of characters to keep, at least the last line is kept anyway
+     */
+    LogBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    private static final class Waiter {
+        final Pattern pattern;
+        final CompletableFuture<String> line = new CompletableFuture<>();
+
+        Waiter(Pattern pattern) {
+            this.pattern = pattern;
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (b == '\n') {
+            endLine();
+        } else {
+            partial.write(b);
+            if (partial.size() > capacity) {
+                endLine();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                partial.write(b, start, i - start);
+                endLine();
+                start = i + 1;
+            }
+        }
+        partial.write(b, start, off + len - start);
+        if (partial.size() > capacity) {
+            endLine();
+        }
+    }
+
+    private void endLine() {
+        String line = partial.toString(StandardCharsets.UTF_8);
+        partial.reset();
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        lines.add(line);
+        size += line.length() + 1;
+        while (size > capacity && lines.size() > 1) {
+            size -= lines.remove().length() + 1;
+        }
+        for (int i = waiters.size() - 1; i >= 0; i--) {
+            Waiter w = waiters.get(i);
+            if (w.pattern.matcher(line).find()) {
+                w.line.complete(line);
+                waiters.remove(i);
+            }
+        }
+    }
+
+    /**
+     * The last lines, as much as fits in the buffer.
+     */
+    synchronized String tail() {
+        StringBuilder b = new StringBuilder(size + partial.size());
+        for (String line : lines) {
+            b.append(line).append('\n');
+        }
+        return b.append(partial.toString(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Waits for a line matching a pattern, looking at the lines still in the buffer first.
+     *
+     * @return the line
+     * @throws IOException if there is no such line when the log ends, or after the timeout
+     */
+    String waitFor(Pattern pattern, Duration timeout) throws IOException, InterruptedException {
+        Waiter w;
+        synchronized (this) {
+            for (String line : lines) {
+                if (pattern.matcher(line).find()) {
+                    return line;
+                }
+            }
+            if (closed) {
+                throw new IOException("The log ended without any line matching " + pattern);
+            }
+            w = new Waiter(pattern);
+            waiters.add(w);
+        }
+        try {
+            return w.line.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("No line matching " + pattern + " after " + timeout.toMillis() + "ms");
+        } finally {
+            synchronized (this) {
+                waiters.remove(w);
+            }
+        }
+    }
+
+    /**
+     * Whether the log ended, which happens when the container stops.
+     */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Tells that the log ended, failing the waiters.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (partial.size() > 0) {
+            endLine();
+        }
+        for (Waiter w : waiters) {
+            w.line.completeExceptionally(new IOException("The log ended without any line matching " + w.pattern));
+        }
+        waiters.clear();
+    }
+}
@@ -0,0 +1,445 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Follows the logs of all containers from a single thread, reading the streams of the Engine API without blocking.
+ * <p>
+ * Each stream is a response to {@code GET /containers/{id}/logs?follow=true}, copied to its own sink until the container stops
+ * or the stream is closed. Sinks are written by other threads, so that a slow one does not hold back the logs of other containers.
+ * <p>
+ * Should the thread fail, every stream it followed is closed and the next {@link #get()} starts another pump.
+ */
+final class LogPump implements Runnable {
+
+    /**
+     * Bytes decoded from a stream and waiting to be written to its sink, beyond which the stream is paused.
+     */
+    static final int MAX_PENDING = 1024 * 1024;
+    private static final byte[] EOF = new byte[0];
+    /**
+     * Writes the sinks, one task per stream at a time.
+     */
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(new NamedThreadFactory("logs-write"));
+
+    private static LogPump instance;
+
+    /* package */ final Selector selector;
+    private final Queue<Follower> added = new ConcurrentLinkedQueue<>();
+    /**
+     * Streams not closed yet, whether registered with the selector or still {@link #added}.
+     */
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private volatile boolean dead;
+
+    private LogPump() throws IOException {
+        selector = Selector.open();
+    }
+
+    static synchronized LogPump get() throws IOException {
+        if (instance == null || instance.dead) {
+            instance = new LogPump();
+            new NamedThreadFactory("logs").newThread(instance).start();
+        }
+        return instance;
+    }
+
+    /**
+     * Copies the logs of a container to a sink.
+     * <p>
+     * The sink is written to from another thread than the pump, in the order the logs arrive:
+     * should it be slow, only the logs of this container wait, up to {@value #MAX_PENDING} bytes before the daemon is not read any more.
+     *
+     * @param channel connection to the daemon, on which the logs request was sent
+     * @param sink    closed once the logs end
+     * @return to stop following the logs
+     * @throws IOException if the pump stopped, in which case {@link #get()} gives another one
+     */
+    Closeable follow(SocketChannel channel, String cid, OutputStream sink) throws IOException {
+        channel.configureBlocking(false);
+        Follower f = new Follower(channel, cid, sink);
+        synchronized (this) {
+            if (dead) {
+                throw new IOException("Stopped following container logs");
+            }
+            followers.add(f);
+            added.add(f);
+        }
+        selector.wakeup();
+        return f;
+    }
+
+    @Override
+    public void run() {
+        try {
+            pumpAll();
+        } catch (IOException | ClosedSelectorException e) {
+            LOGGER.log(Level.WARNING, "Stopped following container logs", e);
+        } finally {
+            stop();
+        }
+    }
+
+    private void pumpAll() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            selector.select();
+            for (Follower f = added.poll(); f != null; f = added.poll()) {
+                try {
+                    f.register();
+                } catch (ClosedChannelException e) {
+                    f.close();
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                Follower f = (Follower) keys.next().attachment();
+                keys.remove();
+                buf.clear();
+                if (!f.pump(buf)) {
+                    f.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every stream, so that their containers do not look like they are still logging.
+     */
+    private void stop() {
+        synchronized (this) {
+            dead = true;
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        added.clear();
+        for (Follower f : followers) {
+            f.close();
+        }
+    }
+
+    /**
+     * A stream being followed.
+     * <p>
+     * What it decodes is queued for a {@link #WRITERS} thread, so that a slow sink only holds back its own container:
+     * once {@link #MAX_PENDING} bytes wait to be written, the stream is not read any more until half of them are.
+     */
+    private final class Follower implements Closeable {
+        final SocketChannel channel;
+        final Decoder decoder;
+        private final OutputStream sink;
+        private boolean closed;
+        private SelectionKey key;
+        /**
+         * Decoded bytes not written yet, ending with {@link #EOF} once the sink is to be closed.
+         * Guards the fields below, which are shared with the writing thread.
+         */
+        private final Queue<byte[]> chunks = new ArrayDeque<>();
+        private long pending;
+        private boolean writing;
+        private boolean paused;
+        private boolean broken;
+
+        Follower(SocketChannel channel, String cid, OutputStream sink) {
+            this.channel = channel;
+            this.sink = sink;
+            this.decoder = new Decoder(cid, new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    enqueue(Arrays.copyOfRange(b, off, off + len));
+                }
+
+                @Override
+                public void close() {
+                    enqueue(EOF);
+                }
+            });
+        }
+
+        void register() throws ClosedChannelException {
+            SelectionKey k = channel.register(selector, SelectionKey.OP_READ, this);
+            synchronized (chunks) {
+                key = k;
+            }
+        }
+
+        /**
+         * Copies what the daemon sent so far.
+         *
+         * @return false once the logs end
+         */
+        synchronized boolean pump(ByteBuffer buf) {
+            if (closed) {
+                return false;
+            }
+            synchronized (chunks) {
+                if (pending >= MAX_PENDING) {
+                    paused = true;
+                    key.interestOps(0);
+                    return true;
+                }
+            }
+            try {
+                if (channel.read(buf) < 0) {
+                    return false;
+                }
+                buf.flip();
+                return decoder.feed(buf);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Stopped following the logs of " + decoder.cid, e);
+                return false;
+            }
+        }
+
+        private void enqueue(byte[] chunk) {
+            synchronized (chunks) {
+                chunks.add(chunk);
+                pending += chunk.length;
+                if (writing) {
+                    return;
+                }
+                writing = true;
+            }
+            WRITERS.execute(this::write);
+        }
+
+        /**
+         * Writes the queued chunks in order until none is left, resuming the stream once most of them are written.
+         */
+        private void write() {
+            while (true) {
+                byte[] chunk;
+                boolean skip;
+                synchronized (chunks) {
+                    chunk = chunks.poll();
+                    if (chunk == null) {
+                        writing = false;
+                        return;
+                    }
+                    skip = broken;
+                }
+                if (chunk == EOF) {
+                    try {
+                        sink.close();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Failed to close the log of " + decoder.cid, e);
+                    }
+                } else if (!skip) {
+                    try {
+                        sink.write(chunk);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to write the logs of " + decoder.cid, e);
+                        skip = true;
+                    }
+                }
+                synchronized (chunks) {
+                    broken = skip;
+                    pending -= chunk.length;
+                    if (paused && pending <= MAX_PENDING / 2) {
+                        paused = false;
+                        try {
+                            key.interestOps(SelectionKey.OP_READ);
+                            selector.wakeup();
+                        } catch (CancelledKeyException e) {
+                            // closed meanwhile
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            followers.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            try {
+                decoder.finish();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the log of " + decoder.cid, e);
+            }
+        }
+    }
+
+    /**
+     * Copies the payload of a logs response to a sink as bytes arrive.
+     * <p>
+     * The body is chunked or not, and made of frames prefixed with an 8 bytes header unless the container has a TTY.
+     * As the daemon does not always tell which, the first bytes are checked to look like such a header.
+     */
+    static final class Decoder {
+        private enum State { HEADERS, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, BODY, DONE }
+
+        final String cid;
+        private final OutputStream sink;
+        private State state = State.HEADERS;
+        private final StringBuilder line = new StringBuilder();
+        private int status;
+        private boolean chunked;
+        private long chunkRemaining;
+        private Boolean framed;
+        private final byte[] header = new byte[8];
+        private int headerLength;
+        private long frameRemaining;
+
+        Decoder(String cid, OutputStream sink) {
+            this.cid = cid;
+            this.sink = sink;
+        }
+
+        /**
+         * Consumes bytes of the response.
+         *
+         * @return false once the response ended
+         */
+        boolean feed(ByteBuffer in) throws IOException {
+            while (in.hasRemaining() && state != State.DONE) {
+                switch (state) {
+                case HEADERS:
+                    String l = readLine(in);
+                    if (l == null) {
+                        break;
+                    }
+                    if (status == 0) {
+                        String[] parts = l.split(" ", 3);
+                        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                            throw new IOException("Unexpected response from the Docker daemon: " + l);
+                        }
+                        status = Integer.parseInt(parts[1]);
+                        if (status != 200) {
+                            throw new IOException("Failed to follow the logs of " + cid + ": " + l);
+                        }
+                    } else if (l.isEmpty()) {
+                        state = chunked ? State.CHUNK_SIZE : State.BODY;
+                    } else if (l.toLowerCase(Locale.ENGLISH).startsWith("transfer-encoding:") && l.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+                        chunked = true;
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    l = readLine(in);
+                    if (l == null) {
+                        break;
+                    }
+                    int ext = l.indexOf(';');
+                    chunkRemaining = Long.parseLong((ext < 0 ? l : l.substring(0, ext)).trim(), 16);
+                    state = chunkRemaining == 0 ? State.DONE : State.CHUNK_DATA;
+                    break;
+                case CHUNK_DATA:
+                    int n = (int) Math.min(chunkRemaining, in.remaining());
+                    int limit = in.limit();
+                    in.limit(in.position() + n);
+                    payload(in);
+                    in.limit(limit);
+                    chunkRemaining -= n;
+                    if (chunkRemaining == 0) {
+                        state = State.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(in) != null) {
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case BODY:
+                    payload(in);
+                    break;
+                default:
+                    throw new AssertionError(state);
+                }
+            }
+            return state != State.DONE;
+        }
+
+        private /*@CheckForNull*/ String readLine(ByteBuffer in) {
+            while (in.hasRemaining()) {
+                char c = (char) (in.get() & 0xFF);
+                if (c == '\n') {
+                    int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? line.length() - 1 : line.length();
+                    String l = line.substring(0, end);
+                    line.setLength(0);
+                    return l;
+                }
+                line.append(c);
+            }
+            return null;
+        }
+
+        private void payload(ByteBuffer in) throws IOException {
+            while (in.hasRemaining()) {
+                if (frameRemaining > 0 || Boolean.FALSE.equals(framed)) {
+                    int n = (int) (Boolean.FALSE.equals(framed) ? in.remaining() : Math.min(frameRemaining, in.remaining()));
+                    sink.write(in.array(), in.arrayOffset() + in.position(), n);
+                    in.position(in.position() + n);
+                    if (framed) {
+                        frameRemaining -= n;
+                    }
+                    continue;
+                }
+                header[headerLength++] = in.get();
+                if (headerLength < header.length) {
+                    continue;
+                }
+                headerLength = 0;
+                if (framed == null) {
+                    // stdin, stdout or stderr
+                    framed = header[0] >= 0 && header[0] <= 2 && header[1] == 0 && header[2] == 0 && header[3] == 0;
+                    if (!framed) {
+                        sink.write(header);
+                        continue;
+                    }
+                }
+                frameRemaining = ((header[4] & 0xFFL) << 24) | ((header[5] & 0xFF) << 16) | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+            }
+        }
+
+        /**
+         * Writes what is left of a stream shorter than a frame header, then closes the sink.
+         */
+        void finish() throws IOException {
+            try (OutputStream s = sink) {
+                if (framed == null && state != State.HEADERS) {
+                    s.write(header, 0, headerLength);
+                }
+                headerLength = 0;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LogPump.class.getName());
+}
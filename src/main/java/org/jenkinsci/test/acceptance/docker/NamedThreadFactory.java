@@ -0,0 +1,23 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with recognizable names, so that they never keep the test JVM alive.
+ */
+final class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "docker-fixtures-" + name + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,243 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reserves the host ports containers are published on when their mapping is fixed, with
+ * {@link DockerFixture#matchHostPorts()} or {@link DockerImage.Starter#withPortOffset(Integer)},
+ * or picks a free offset for {@link DockerImage.Starter#withAllocatedPortOffset()},
+ * so that parallel forks do not race for the same ports.
+ * <p>
+ * Each host port is reserved by locking a file named after it in {@link Docker#CACHE_DIR},
+ * which the operating system releases when the owner dies.
+ */
+final class PortAllocator {
+
+    /**
+     * Most offsets tried by {@link #allocate}.
+     */
+    private static final int ALLOCATION_ATTEMPTS = 100;
+
+    /**
+     * Lock files held by this JVM, as a JVM cannot lock a file twice.
+     */
+    private static final Set<String> HELD = new HashSet<>();
+
+    private PortAllocator() {
+    }
+
+    /**
+     * Reserves the host ports of a fixed mapping, waiting for other threads or processes holding any of them.
+     *
+     * @param offset  added to container ports to get host ports
+     * @param timeout how long to wait for the ports
+     * @throws IOException if the ports are still held after the timeout
+     */
+    static Lease reserve(int offset, int[] ports, int[] udpPorts, Duration timeout) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Backoff backoff = new Backoff(50, 2000);
+        boolean announced = false;
+        while (true) {
+            Lease lease = tryReserve(offset, ports, udpPorts);
+            if (lease != null) {
+                return lease;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new IOException("Host ports " + describe(offset, ports, udpPorts) + " are still used by another container after "
+                        + Deadline.format(timeout));
+            }
+            if (!announced) {
+                LOGGER.info(() -> "Waiting for another container to release host ports " + describe(offset, ports, udpPorts));
+                announced = true;
+            }
+            Thread.sleep(Math.min(remaining, backoff.nextDelay()));
+        }
+    }
+
+    /**
+     * Picks an offset at which all the given container ports are free on the host, between {@link Docker#MIN_ALLOCATED_PORT}
+     * and {@link Docker#MAX_ALLOCATED_PORT}, and reserves the resulting host ports.
+     * When the daemon runs on this machine, ports something else listens on are skipped too.
+     *
+     * @throws IOException if no such offset was found
+     */
+    static Lease allocate(int[] ports, int[] udpPorts) throws IOException {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int[] protocolPorts : List.of(ports, udpPorts)) {
+            for (int p : protocolPorts) {
+                min = Math.min(min, p);
+                max = Math.max(max, p);
+            }
+        }
+        if (max == 0) {
+            return new Lease(0, List.of(), List.of());
+        }
+        int lowest = Docker.MIN_ALLOCATED_PORT - min;
+        int highest = Docker.MAX_ALLOCATED_PORT - max;
+        if (highest < lowest) {
+            throw new IOException("Container ports " + Arrays.toString(ports) + " and " + Arrays.toString(udpPorts) + " span more than the "
+                    + Docker.MIN_ALLOCATED_PORT + "-" + Docker.MAX_ALLOCATED_PORT + " host port range");
+        }
+        boolean local = isDaemonLocal();
+        for (int i = 0; i < ALLOCATION_ATTEMPTS; i++) {
+            // random rather than sequential, so that parallel forks seldom try the same offsets
+            int offset = lowest + ThreadLocalRandom.current().nextInt(highest - lowest + 1);
+            Lease lease = tryReserve(offset, ports, udpPorts);
+            if (lease != null) {
+                if (!local || lease.available()) {
+                    return lease;
+                }
+                lease.close();
+            }
+        }
+        throw new IOException("Found no free host ports for container ports " + Arrays.toString(ports) + " and " + Arrays.toString(udpPorts)
+                + " after " + ALLOCATION_ATTEMPTS + " attempts");
+    }
+
+    private static /*@CheckForNull*/ Lease tryReserve(int offset, int[] ports, int[] udpPorts) throws IOException {
+        File dir = new File(Docker.CACHE_DIR, "ports");
+        Files.createDirectories(dir.toPath());
+        List<String> keys = new ArrayList<>();
+        List<FileChannel> channels = new ArrayList<>();
+        Lease lease = new Lease(offset, keys, channels);
+        boolean reserved = false;
+        try {
+            for (String key : keys(offset, ports, udpPorts)) {
+                synchronized (HELD) {
+                    if (!HELD.add(key)) {
+                        return null;
+                    }
+                }
+                keys.add(key);
+                FileChannel channel = FileChannel.open(new File(dir, key + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channels.add(channel);
+                try {
+                    if (channel.tryLock() == null) {
+                        return null;
+                    }
+                } catch (OverlappingFileLockException e) {
+                    // locked by this JVM, yet not through this class
+                    return null;
+                }
+            }
+            reserved = true;
+            return lease;
+        } finally {
+            if (!reserved) {
+                lease.close();
+            }
+        }
+    }
+
+    private static List<String> keys(int offset, int[] ports, int[] udpPorts) {
+        List<String> keys = new ArrayList<>();
+        for (int p : ports) {
+            keys.add("tcp-" + (offset + p));
+        }
+        for (int p : udpPorts) {
+            keys.add("udp-" + (offset + p));
+        }
+        return keys;
+    }
+
+    private static String describe(int offset, int[] ports, int[] udpPorts) {
+        return String.join(", ", keys(offset, ports, udpPorts));
+    }
+
+    /**
+     * Whether ports published by the daemon are bound on this machine, so that they can be checked before {@code docker run}.
+     */
+    private static boolean isDaemonLocal() {
+        try {
+            return InetAddress.getByName(DockerImage.getDockerHost()).isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Host ports reserved for a container, until closed.
+     */
+    static final class Lease implements Closeable {
+        private final int offset;
+        private final List<String> keys;
+        private final List<FileChannel> channels;
+
+        private Lease(int offset, List<String> keys, List<FileChannel> channels) {
+            this.offset = offset;
+            this.keys = keys;
+            this.channels = channels;
+        }
+
+        /**
+         * Added to container ports to get host ports.
+         */
+        int offset() {
+            return offset;
+        }
+
+        /**
+         * Checks that nothing else listens on the reserved ports yet.
+         */
+        boolean available() {
+            for (String key : keys) {
+                int port = Integer.parseInt(key.substring(4));
+                try {
+                    if (key.startsWith("udp-")) {
+                        new DatagramSocket(port).close();
+                    } else {
+                        try (ServerSocket s = new ServerSocket()) {
+                            s.bind(new InetSocketAddress(port));
+                        }
+                    }
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            for (FileChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to release a host port", e);
+                }
+            }
+            synchronized (HELD) {
+                HELD.removeAll(keys);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.join(", ", keys);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PortAllocator.class.getName());
+}
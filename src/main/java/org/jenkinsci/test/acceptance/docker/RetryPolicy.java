@@ -0,0 +1,65 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a failed call to the daemon is worth another attempt, as configured by {@link Docker#RETRY_ATTEMPTS}
+ * and {@link Docker#RETRY_DELAY}.
+ * <p>
+ * Only failures known to come from a daemon under load are retried, waiting a little longer each time.
+ */
+final class RetryPolicy {
+
+    /**
+     * Error messages of the daemon, or of the registries it talks to, that may not happen again on the next attempt.
+     */
+    static final Pattern TRANSIENT = Pattern.compile(
+            "port is already allocated|address already in use|context deadline exceeded|i/o timeout|connection reset by peer"
+                    + "|TLS handshake timeout|toomanyrequests|Cannot connect to the Docker daemon|device or resource busy",
+            Pattern.CASE_INSENSITIVE);
+
+    private final Object what;
+    private final Backoff backoff;
+    private int attemptsLeft;
+
+    /**
+     * @param what the command, to tell in the log
+     */
+    RetryPolicy(Object what) {
+        this(what, Docker.RETRY_ATTEMPTS, Docker.RETRY_DELAY);
+    }
+
+    /**
+     * @param attempts number of attempts in total, including the first one
+     * @param delay    delay before the second attempt, in milliseconds
+     */
+    RetryPolicy(Object what, int attempts, long delay) {
+        this.what = what;
+        this.backoff = new Backoff(delay, delay * 16);
+        this.attemptsLeft = attempts - 1;
+    }
+
+    static boolean isTransient(/*@CheckForNull*/ CharSequence failure) {
+        return failure != null && TRANSIENT.matcher(failure).find();
+    }
+
+    /**
+     * Waits before another attempt if the failure looks transient and there are attempts left.
+     *
+     * @param failure what the daemon said
+     * @return false to give up
+     */
+    boolean retry(/*@CheckForNull*/ CharSequence failure) throws InterruptedException {
+        if (attemptsLeft <= 0 || !isTransient(failure)) {
+            return false;
+        }
+        attemptsLeft--;
+        long delay = backoff.nextDelay();
+        LOGGER.warning(() -> "Retrying `" + what + "` in " + delay + "ms after a transient failure: " + failure);
+        Thread.sleep(delay);
+        return true;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RetryPolicy.class.getName());
+}
@@ -31,6 +31,15 @@ class SHA1Sum {
         }
     }
 
+    SHA1Sum(InputStream in) throws IOException {
+        try {
+            this.sha1 = this.createSha1(in);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.sha1String = this.convertByteToString(this.sha1);
+    }
+
     public String getSha1String() {
         return this.sha1String;
     }
@@ -49,20 +58,23 @@ class SHA1Sum {
     }
 
     private byte[] createSha1(File file) throws NoSuchAlgorithmException, IOException {
+        try (InputStream fis = new FileInputStream(file)) {
+            return createSha1(fis);
+        }
+    }
+
+    private byte[] createSha1(InputStream in) throws NoSuchAlgorithmException, IOException {
         int n = 0;
         byte[] buffer = new byte[8192];
 
         MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        try (InputStream fis = new FileInputStream(file)) {
-            while (n != -1) {
-                n = fis.read(buffer);
-                if (n > 0) {
-                    digest.update(buffer, 0, n);
-                }
+        while (n != -1) {
+            n = in.read(buffer);
+            if (n > 0) {
+                digest.update(buffer, 0, n);
             }
-            return digest.digest();
         }
-
+        return digest.digest();
     }
 
 }
@@ -0,0 +1,205 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Containers shared by all tests of the JVM which use the same fixture and image, counting their users.
+ * <p>
+ * A container is {@linkplain DockerContainer#reset() reset} before being handed to a new user while nobody else uses it,
+ * and closed once unused for {@link Docker#SHARED_CONTAINER_LINGER}, or when the JVM exits.
+ * <p>
+ * Containers are shared by fixture class and image tag only: {@link DockerRule} starts them without any options or arguments,
+ * so nothing else tells them apart.
+ */
+final class SharedContainers {
+
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private static final ScheduledExecutorService LINGER = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shared"));
+
+    private SharedContainers() {
+    }
+
+    private static final class Entry {
+        final String key;
+        DockerContainer container;
+        /**
+         * Completed once the container being started by its first user is up, for the others to wait on.
+         */
+        CompletableFuture<DockerContainer> starting;
+        int users;
+        boolean used;
+        boolean removed;
+        ScheduledFuture<?> linger;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Gets the shared container of a fixture, starting it if needed.
+     * The container is started without holding the lock of its entry, so that other users of the same fixture are not blocked meanwhile.
+     *
+     * @param starter how to start the container, for the first user
+     */
+    static <T extends DockerContainer> T acquire(Class<T> type, DockerImage image, Callable<T> starter) throws IOException, InterruptedException {
+        String key = type.getName() + "@" + image.tag;
+        while (true) {
+            Entry e;
+            synchronized (ENTRIES) {
+                e = ENTRIES.computeIfAbsent(key, Entry::new);
+            }
+            CompletableFuture<DockerContainer> started;
+            boolean first = false;
+            synchronized (e) {
+                if (e.removed) {
+                    // closed in the meantime
+                    continue;
+                }
+                if (e.linger != null) {
+                    e.linger.cancel(false);
+                    e.linger = null;
+                }
+                if (e.container != null && e.used && e.users == 0) {
+                    try {
+                        e.container.assertRunning();
+                        e.container.reset();
+                    } catch (IOException | RuntimeException | Error x) {
+                        LOGGER.log(Level.WARNING, "Failed to reset " + e.container + ", starting a new one", x);
+                        closeQuietly(e.container);
+                        e.container = null;
+                    }
+                }
+                // counted right away, so that the container is not closed while being started
+                e.users++;
+                if (e.container != null) {
+                    e.used = true;
+                    return type.cast(e.container);
+                }
+                if (e.starting == null) {
+                    e.starting = new CompletableFuture<>();
+                    first = true;
+                }
+                started = e.starting;
+            }
+            if (first) {
+                return type.cast(start(e, type, starter));
+            }
+            try {
+                return type.cast(started.get());
+            } catch (ExecutionException x) {
+                release(e);
+                throw new IOException("Failed to start " + type.getName(), x.getCause());
+            } catch (InterruptedException x) {
+                release(e);
+                throw x;
+            }
+        }
+    }
+
+    private static DockerContainer start(Entry e, Class<?> type, Callable<? extends DockerContainer> starter) throws IOException, InterruptedException {
+        DockerContainer c;
+        try {
+            c = starter.call();
+        } catch (Exception x) {
+            CompletableFuture<DockerContainer> starting;
+            synchronized (e) {
+                starting = e.starting;
+                e.starting = null;
+            }
+            starting.completeExceptionally(x);
+            release(e);
+            if (x instanceof IOException) {
+                throw (IOException) x;
+            } else if (x instanceof InterruptedException) {
+                throw (InterruptedException) x;
+            } else if (x instanceof RuntimeException) {
+                throw (RuntimeException) x;
+            }
+            throw new IOException("Failed to start " + type.getName(), x);
+        }
+        CompletableFuture<DockerContainer> starting;
+        synchronized (e) {
+            e.container = c;
+            e.used = true;
+            starting = e.starting;
+            e.starting = null;
+        }
+        starting.complete(c);
+        return c;
+    }
+
+    /**
+     * Tells that a user of a shared container is done with it.
+     */
+    static void release(DockerContainer container) {
+        Entry e = find(container);
+        if (e != null) {
+            release(e);
+        }
+    }
+
+    private static void release(Entry e) {
+        synchronized (e) {
+            if (--e.users > 0 || e.container == null) {
+                return;
+            }
+            long linger = Docker.SHARED_CONTAINER_LINGER;
+            if (linger == 0) {
+                remove(e);
+            } else if (linger > 0) {
+                e.linger = LINGER.schedule(() -> {
+                    synchronized (e) {
+                        if (e.users == 0 && !e.removed) {
+                            remove(e);
+                        }
+                    }
+                }, linger, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static /*@CheckForNull*/ Entry find(DockerContainer container) {
+        synchronized (ENTRIES) {
+            for (Entry e : ENTRIES.values()) {
+                if (e.container == container) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the container of an entry, called with the entry locked.
+     */
+    private static void remove(Entry e) {
+        e.removed = true;
+        synchronized (ENTRIES) {
+            ENTRIES.remove(e.key, e);
+        }
+        closeQuietly(e.container);
+    }
+
+    private static void closeQuietly(DockerContainer container) {
+        try {
+            container.close();
+        } catch (RuntimeException | Error x) {
+            LOGGER.log(Level.WARNING, "Failed to close " + container, x);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SharedContainers.class.getName());
+}
@@ -0,0 +1,229 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes many containers with as few requests to the daemon as possible,
+ * in the background when {@link Docker#ASYNC_TEARDOWN} is set.
+ * <p>
+ * Also keeps track of the containers not closed yet, to remove them all in batches from a single shutdown hook.
+ */
+final class Teardown {
+
+    /**
+     * Most containers to remove with one {@code docker rm -f} command.
+     */
+    static final int BATCH_SIZE = 50;
+
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(new NamedThreadFactory("teardown"));
+
+    private static final Set<CompletableFuture<Void>> PENDING = ConcurrentHashMap.newKeySet();
+
+    private static final Set<DockerContainer> LIVE = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Teardown::shutdown, "docker-fixtures-teardown-hook"));
+    }
+
+    private Teardown() {
+    }
+
+    /**
+     * Remembers a started container, to remove it when the JVM exits unless it is closed before.
+     */
+    static void register(DockerContainer container) {
+        LIVE.add(container);
+    }
+
+    static void unregister(DockerContainer container) {
+        LIVE.remove(container);
+    }
+
+    /**
+     * Forgets all containers without removing them, for tests whose containers are fake.
+     */
+    static void reset() {
+        LIVE.clear();
+    }
+
+    /**
+     * Closes containers, removing all of them at once except those which close themselves differently.
+     *
+     * @see DockerContainer#closeAll
+     */
+    static void closeAll(Collection<? extends DockerContainer> containers) {
+        closeAll(containers, Docker.ASYNC_TEARDOWN, false);
+    }
+
+    /**
+     * @param leftovers whether to remove as well the containers detached before, whose removal failed
+     */
+    private static void closeAll(Collection<? extends DockerContainer> containers, boolean async, boolean leftovers) {
+        AssertionError failure = null;
+        Map<String, DockerContainer> detached = new LinkedHashMap<>();
+        for (DockerContainer c : containers) {
+            if (overridesClose(c)) {
+                try {
+                    c.close();
+                } catch (RuntimeException | AssertionError e) {
+                    failure = addFailure(failure, e);
+                }
+            } else {
+                String cid = c.detach();
+                if (cid == null && leftovers) {
+                    cid = c.getCid();
+                }
+                if (cid != null) {
+                    detached.put(cid, c);
+                }
+            }
+        }
+        if (!detached.isEmpty()) {
+            if (async) {
+                removeInBackground(detached);
+            } else {
+                try {
+                    remove(detached);
+                } catch (IOException | InterruptedException e) {
+                    failure = addFailure(failure, e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static AssertionError addFailure(/*@CheckForNull*/ AssertionError failure, Throwable t) {
+        if (failure == null) {
+            failure = new AssertionError("Failed to close down docker containers");
+        }
+        failure.addSuppressed(t);
+        return failure;
+    }
+
+    /**
+     * Whether a fixture does more than removing its container when closed, so that it cannot be removed with others.
+     */
+    private static boolean overridesClose(DockerContainer c) {
+        try {
+            return c.getClass().getMethod("close").getDeclaringClass() != DockerContainer.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Forcibly removes containers, waiting for it.
+     */
+    static void remove(List<String> cids) throws IOException, InterruptedException {
+        remove(cids, batch -> {});
+    }
+
+    /**
+     * Forcibly removes detached containers, waiting for it.
+     * Only the containers actually removed are forgotten, so that the others are tried again when the JVM exits.
+     */
+    private static void remove(Map<String, DockerContainer> detached) throws IOException, InterruptedException {
+        remove(new ArrayList<>(detached.keySet()), batch -> batch.forEach(cid -> detached.get(cid).removed()));
+    }
+
+    private static void remove(List<String> cids, Consumer<List<String>> onRemoved) throws IOException, InterruptedException {
+        LOGGER.fine(() -> "Removing containers " + cids);
+        IOException failure = null;
+        for (int i = 0; i < cids.size(); i += BATCH_SIZE) {
+            List<String> batch = cids.subList(i, Math.min(i + BATCH_SIZE, cids.size()));
+            try {
+                Docker.transport().removeAll(batch);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                continue;
+            }
+            onRemoved.accept(batch);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void removeInBackground(Map<String, DockerContainer> detached) {
+        CompletableFuture<Void> removal = CompletableFuture.runAsync(() -> {
+            try {
+                remove(detached);
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove containers " + detached.keySet(), e);
+            }
+        }, BACKGROUND);
+        PENDING.add(removal);
+        removal.whenComplete((v, e) -> PENDING.remove(removal));
+    }
+
+    /**
+     * Waits for removals still running in the background, so that the containers do not outlive the JVM.
+     */
+    static void awaitPending() {
+        if (PENDING.isEmpty()) {
+            return;
+        }
+        try {
+            CompletableFuture.allOf(PENDING.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.log(Level.WARNING, "Some containers may not have been removed", e);
+        }
+    }
+
+    private static void shutdown() {
+        awaitPending();
+        List<String> removed;
+        try {
+            removed = removeLeftovers();
+        } catch (AssertionError e) {
+            System.err.println("Failed to remove docker containers left running");
+            e.printStackTrace();
+            return;
+        }
+        if (!removed.isEmpty()) {
+            // the logging system may already be shut down
+            System.err.println("Removed " + removed.size() + " docker containers left running: " + String.join(" ", removed));
+        }
+    }
+
+    /**
+     * Closes all containers not closed yet, or whose removal failed, waiting for it.
+     *
+     * @return the IDs of the containers
+     */
+    static List<String> removeLeftovers() {
+        List<DockerContainer> leftovers = new ArrayList<>(LIVE);
+        List<String> cids = new ArrayList<>();
+        for (DockerContainer c : leftovers) {
+            cids.add(c.getCid());
+        }
+        closeAll(leftovers, false, true);
+        return cids;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Teardown.class.getName());
+}
@@ -0,0 +1,177 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells when a freshly started container is ready to be used, such as when its service accepts connections.
+ *
+ * @see DockerImage.Starter#waitingFor(WaitStrategy)
+ */
+public abstract class WaitStrategy {
+
+    /**
+     * Checks once whether the container is ready.
+     * {@link DockerContainer#getState()} was just refreshed, and tells that the container is running.
+     *
+     * @return false, or throw {@link IOException}, to be asked again later
+     */
+    public abstract boolean isReady(DockerContainer container) throws IOException, InterruptedException;
+
+    /**
+     * Waits until the container is ready, checking it with exponential backoff.
+     *
+     * @throws IOException if the container stopped, or did not become ready in time
+     */
+    void waitUntilReady(DockerContainer container, Duration timeout) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Backoff backoff = new Backoff(50, 2000);
+        IOException failure = null;
+        while (true) {
+            ContainerState state = container.refresh();
+            if (!state.isRunning()) {
+                throw new IOException(container + " stopped while " + this + ": " + state, failure);
+            }
+            failure = null;
+            try {
+                if (isReady(container)) {
+                    return;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new IOException(container + " was not ready after " + timeout.toMillis() + "ms " + this, failure);
+            }
+            Thread.sleep(Math.min(remaining, backoff.nextDelay()));
+        }
+    }
+
+    /**
+     * Waits until a TCP port of the container accepts connections.
+     * <p>
+     * The Docker proxy accepts connections on published ports even before anything listens in the container,
+     * closing them right away, so the port is only considered ready if the connection stays open for a moment.
+     */
+    public static WaitStrategy forPort(int port) {
+        return new WaitStrategy() {
+            @Override
+            public boolean isReady(DockerContainer container) throws IOException {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host(container, port), container.port(port)), 1000);
+                    s.setSoTimeout(200);
+                    try {
+                        return s.getInputStream().read() != -1;
+                    } catch (SocketTimeoutException e) {
+                        // connected, the service waits for the client to speak first
+                        return true;
+                    }
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "waiting for port " + port;
+            }
+        };
+    }
+
+    /**
+     * Waits until an HTTP request to the container succeeds.
+     *
+     * @param path     path of the URL to request, such as {@code /login}
+     * @param statuses acceptable status codes, any status below 400 if none is given
+     */
+    public static WaitStrategy forHttp(int port, String path, int... statuses) {
+        return new WaitStrategy() {
+            @Override
+            public boolean isReady(DockerContainer container) throws IOException {
+                String host = host(container, port);
+                URL url = new URL("http", host.contains(":") ? "[" + host + "]" : host, container.port(port), path);
+                HttpURLConnection c = (HttpURLConnection) url.openConnection();
+                c.setConnectTimeout(1000);
+                c.setReadTimeout(5000);
+                c.setInstanceFollowRedirects(false);
+                try {
+                    int status = c.getResponseCode();
+                    try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+                        // drain so that the connection can be reused
+                        if (in != null) {
+                            in.transferTo(OutputStream.nullOutputStream());
+                        }
+                    }
+                    return statuses.length == 0 ? status < 400 : Arrays.stream(statuses).anyMatch(s -> s == status);
+                } finally {
+                    c.disconnect();
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "waiting for HTTP port " + port + " to answer " + path + (statuses.length == 0 ? "" : " with " + Arrays.toString(statuses));
+            }
+        };
+    }
+
+    /**
+     * Waits until the {@code HEALTHCHECK} of the image reports the container as healthy.
+     */
+    public static WaitStrategy forHealthcheck() {
+        return new WaitStrategy() {
+            @Override
+            public boolean isReady(DockerContainer container) throws IOException {
+                JsonNode health = container.getState().getDetails().path("State").path("Health");
+                if (health.isMissingNode() || health.isNull()) {
+                    throw new IllegalStateException("The image of " + container + " has no HEALTHCHECK");
+                }
+                return "healthy".equals(health.path("Status").asText());
+            }
+
+            @Override
+            public String toString() {
+                return "waiting for the container to be healthy";
+            }
+        };
+    }
+
+    /**
+     * Waits until a command run in the container with {@code docker exec} succeeds.
+     */
+    public static WaitStrategy forCommand(String... command) {
+        return new WaitStrategy() {
+            @Override
+            public boolean isReady(DockerContainer container) throws IOException, InterruptedException {
+                Process p = Docker.cmd("exec").add(container.getCid()).add((Object[]) command).build()
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .start();
+                return Deadline.waitFor(p, Duration.ofSeconds(Docker.REQUEST_TIMEOUT), String.join(" ", command)) == 0;
+            }
+
+            @Override
+            public String toString() {
+                return "waiting for " + String.join(" ", command) + " to succeed";
+            }
+        };
+    }
+
+    /**
+     * Address to connect to a published port, which may be bound to all addresses of the Docker host.
+     */
+    private static String host(DockerContainer container, int port) {
+        String ip = container.ipBound(port);
+        return ip.isEmpty() || ip.equals("0.0.0.0") || ip.equals("::") ? DockerImage.getDockerHost() : ip;
+    }
+}
@@ -0,0 +1,100 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContainerPoolTest {
+
+    private final List<TrackedContainer> started = new CopyOnWriteArrayList<>();
+
+    private TrackedContainer start() {
+        TrackedContainer c = new TrackedContainer();
+        started.add(c);
+        return c;
+    }
+
+    @Test
+    public void handsOutStartedContainersAndReplacesThem() throws Exception {
+        TrackedContainer first;
+        TrackedContainer second;
+        try (ContainerPool<TrackedContainer> pool = new ContainerPool<>(this::start, 2, Duration.ofMinutes(5))) {
+            first = pool.take();
+            second = pool.take();
+            assertTrue(first != second);
+            await(() -> started.size() == 4);
+        }
+        // only the two containers left in the pool are closed
+        assertThat(started.stream().filter(c -> c.closed.get()).count(), is(2L));
+        assertThat(first.closed.get(), is(false));
+        assertThat(second.closed.get(), is(false));
+    }
+
+    @Test
+    public void closesIdleContainersAndRefillsOnNextUse() throws Exception {
+        try (ContainerPool<TrackedContainer> pool = new ContainerPool<>(this::start, 1, Duration.ofMillis(100))) {
+            await(() -> started.size() == 1 && started.get(0).closed.get());
+            assertThat(pool.take().closed.get(), is(false));
+            await(() -> started.size() == 3);
+        }
+    }
+
+    @Test
+    public void reportsStartFailures() throws Exception {
+        try (ContainerPool<TrackedContainer> pool = new ContainerPool<>(() -> {
+            throw new IOException("no such image");
+        }, 1, Duration.ofMinutes(5))) {
+            pool.take();
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getCause().getMessage(), is("no such image"));
+        }
+    }
+
+    @Test
+    public void evictsContainersStillStartingWithoutBlocking() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (ContainerPool<TrackedContainer> pool = new ContainerPool<>(() -> {
+            if (started.isEmpty()) {
+                release.await();
+            }
+            return start();
+        }, 1, Duration.ofMillis(50))) {
+            // let the pool be evicted while its only start thread is busy
+            Thread.sleep(200);
+            release.countDown();
+            await(() -> started.size() == 1 && started.get(0).closed.get());
+            TrackedContainer c = pool.take();
+            assertThat(c.closed.get(), is(false));
+        }
+    }
+
+    @Test
+    public void replacesContainersWhichStoppedInThePool() throws Exception {
+        try (ContainerPool<TrackedContainer> pool = new ContainerPool<>(this::start, 1, Duration.ofMinutes(5))) {
+            await(() -> started.size() == 1);
+            started.get(0).running = false;
+            TrackedContainer c = pool.take();
+            assertTrue(c != started.get(0));
+            assertThat(started.get(0).closed.get(), is(true));
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContextHashIndexTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] DOCKERFILE = "FROM ubuntu:noble\nCOPY key.pub /tmp/\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void digestCoversEveryFileInTheContext() throws IOException {
+        File context = newContext();
+        ContextHashIndex index = new ContextHashIndex(new File(folder.getRoot(), "index.properties"));
+        String before = index.digest(new BuildContext.Directory(context), DOCKERFILE, null);
+        assertThat(index.digest(new BuildContext.Directory(context), DOCKERFILE, null), is(before));
+
+        File key = new File(context, "sub/key.pub");
+        FileUtils.write(key, "ssh-rsa BBBB", StandardCharsets.UTF_8);
+        key.setLastModified(key.lastModified() + 2000);
+        assertNotEquals(before, index.digest(new BuildContext.Directory(context), DOCKERFILE, null));
+    }
+
+    @Test
+    public void digestCoversParentAndProcessedDockerfile() throws IOException {
+        BuildContext context = new BuildContext.Directory(newContext());
+        ContextHashIndex index = new ContextHashIndex(new File(folder.getRoot(), "index.properties"));
+        String digest = index.digest(context, DOCKERFILE, null);
+        assertNotEquals(digest, index.digest(context, DOCKERFILE, "0123456789abcdef"));
+        assertNotEquals(digest, index.digest(context, "FROM ubuntu:jammy\n".getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    @Test
+    public void unchangedFilesAreNotHashedAgain() throws IOException {
+        File context = newContext();
+        File indexFile = new File(folder.getRoot(), "index.properties");
+        String digest = new ContextHashIndex(indexFile).digest(new BuildContext.Directory(context), DOCKERFILE, null);
+        assertTrue(indexFile.isFile());
+
+        // same size and timestamp: a fresh index loaded from disk trusts the recorded hash
+        File key = new File(context, "sub/key.pub");
+        long lastModified = key.lastModified();
+        FileUtils.write(key, "ssh-rsa BBBB", StandardCharsets.UTF_8);
+        key.setLastModified(lastModified);
+        assertThat(new ContextHashIndex(indexFile).digest(new BuildContext.Directory(context), DOCKERFILE, null), is(digest));
+    }
+
+    @Test
+    public void digestCoversExecutableBit() throws IOException {
+        File context = newContext();
+        ContextHashIndex index = new ContextHashIndex(new File(folder.getRoot(), "index.properties"));
+        String before = index.digest(new BuildContext.Directory(context), DOCKERFILE, null);
+        assertTrue(new File(context, "sub/key.pub").setExecutable(true));
+        assertNotEquals(before, index.digest(new BuildContext.Directory(context), DOCKERFILE, null));
+    }
+
+    @Test
+    public void indexesSharingAFileMergeTheirRecords() throws IOException {
+        File indexFile = new File(folder.getRoot(), "index.properties");
+        // as if loaded by two JVMs before either saved
+        ContextHashIndex first = new ContextHashIndex(indexFile);
+        ContextHashIndex second = new ContextHashIndex(indexFile);
+        first.digest(new BuildContext.Directory(newContext()), DOCKERFILE, null);
+        second.digest(new BuildContext.Directory(newContext()), DOCKERFILE, null);
+
+        Properties saved = new Properties();
+        try (InputStream in = new FileInputStream(indexFile)) {
+            saved.load(in);
+        }
+        // the Dockerfile itself is hashed as processed, not recorded
+        assertThat(saved.size(), is(2));
+    }
+
+    private File newContext() throws IOException {
+        File context = folder.newFolder();
+        FileUtils.writeByteArrayToFile(new File(context, "Dockerfile"), DOCKERFILE);
+        FileUtils.write(new File(context, "sub/key.pub"), "ssh-rsa AAAA", StandardCharsets.UTF_8);
+        return context;
+    }
+}
@@ -0,0 +1,98 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ContextTarTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesEveryFileWithTheProcessedDockerfile() throws IOException {
+        File context = folder.newFolder();
+        FileUtils.write(new File(context, "Dockerfile"), "FROM @@BASE@@\n", StandardCharsets.UTF_8);
+        FileUtils.write(new File(context, "keys/unsafe.pub"), "ssh-rsa AAAA", StandardCharsets.UTF_8);
+        String deep = "a/very/long/path/that/does/not/fit/into/the/one/hundred/bytes/of/the/ustar/name/field/of/a/tar/header";
+        FileUtils.write(new File(context, deep + "/file.txt"), "deep", StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ContextTar.write(new BuildContext.Directory(context), "FROM ubuntu\n".getBytes(StandardCharsets.UTF_8), out);
+
+        Map<String, String> files = read(out.toByteArray());
+        assertThat(files.keySet().toString(), is("[Dockerfile, " + deep + "/file.txt, keys/unsafe.pub]"));
+        assertThat(files.get("Dockerfile"), is("FROM ubuntu\n"));
+        assertThat(files.get("keys/unsafe.pub"), is("ssh-rsa AAAA"));
+        assertThat(files.get(deep + "/file.txt"), is("deep"));
+    }
+
+    @Test
+    public void sendsTheDockerfileWithTheModeItIsDigestedWith() throws IOException {
+        File context = folder.newFolder();
+        File dockerfile = new File(context, "Dockerfile");
+        FileUtils.write(dockerfile, "FROM ubuntu\n", StandardCharsets.UTF_8);
+        assertThat(dockerfile.setExecutable(true), is(true));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BuildContext.Directory dir = new BuildContext.Directory(context);
+        ContextTar.write(dir, "FROM ubuntu\n".getBytes(StandardCharsets.UTF_8), out);
+        Map<String, String> modes = new LinkedHashMap<>();
+        read(out.toByteArray(), modes);
+        assertThat(modes.get("Dockerfile"), is(Integer.toOctalString(dir.entries().get(0).mode())));
+        assertThat(modes.get("Dockerfile"), is("755"));
+    }
+
+    private static Map<String, String> read(byte[] tar) {
+        return read(tar, new LinkedHashMap<>());
+    }
+
+    /**
+     * Minimal ustar reader, verifying header checksums.
+     *
+     * @param modes filled with the octal mode of each file
+     */
+    private static Map<String, String> read(byte[] tar, Map<String, String> modes) {
+        Map<String, String> files = new LinkedHashMap<>();
+        assertThat(tar.length % 512, is(0));
+        int offset = 0;
+        while (tar[offset] != 0) {
+            byte[] header = Arrays.copyOfRange(tar, offset, offset + 512);
+            long checksum = 0;
+            for (int i = 0; i < 512; i++) {
+                checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+            }
+            assertThat(Long.parseLong(field(header, 148, 7), 8), is(checksum));
+            String name = field(header, 0, 100);
+            String prefix = field(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+            int size = Integer.parseInt(field(header, 124, 12), 8);
+            files.put(name, new String(tar, offset + 512, size, StandardCharsets.UTF_8));
+            modes.put(name, field(header, 100, 8).replaceFirst("^0+", ""));
+            offset += 512 + (size + 511) / 512 * 512;
+        }
+        return files;
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeadlineTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void reset() {
+        Docker.REQUEST_TIMEOUT = 60;
+        Docker.setAsyncExecutor(null);
+    }
+
+    @Test
+    public void destroysProcessesTakingTooLong() throws Exception {
+        Process p = new ProcessBuilder("sleep", "30").start();
+        long start = System.nanoTime();
+        try {
+            Deadline.waitFor(p, Duration.ofMillis(200), "sleep 30");
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Gave up on `sleep 30` after 200ms, the Docker daemon may be stuck"));
+        }
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toSeconds() < 10);
+        assertThat(p.waitFor(10, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void readsOutputOfCommandsWhateverTheAsyncExecutor() throws Exception {
+        // as if all its threads were busy
+        Docker.setAsyncExecutor(task -> {});
+        Process p = new ProcessBuilder("echo", "abc123").start();
+        assertThat(Deadline.output(p, Duration.ofSeconds(30), "echo"), is("abc123\n"));
+    }
+
+    @Test
+    public void destroysProcessesWhenInterrupted() throws Exception {
+        Process p = new ProcessBuilder("sleep", "30").start();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                Deadline.waitFor(p, Duration.ofMinutes(1), "sleep 30");
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        waiter.interrupt();
+        waiter.join(10_000);
+        assertTrue(failure.get() instanceof InterruptedException);
+        assertThat(p.waitFor(10, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void abortsApiRequestsTheDaemonDoesNotAnswer() throws Exception {
+        File socket = new File(folder.getRoot(), "docker.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            Docker.REQUEST_TIMEOUT = 1;
+            EngineApiTransport api = new EngineApiTransport(UnixDomainSocketAddress.of(socket.toPath()));
+            Thread daemon = new Thread(() -> {
+                try (SocketChannel ch = server.accept()) {
+                    // wedged
+                    Thread.sleep(30_000);
+                } catch (IOException | InterruptedException e) {
+                    // done
+                }
+            });
+            daemon.start();
+            try {
+                api.inspectContainer("abc");
+                fail();
+            } catch (IOException e) {
+                assertThat(e.getMessage(), is("Gave up on `GET /containers/abc/json` after 1s, the Docker daemon may be stuck"));
+            } finally {
+                daemon.interrupt();
+                daemon.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+
+public class DockerClassRuleTest {
+
+    @Rule
+    public final FakeTransport transport = new FakeTransport("{\"State\":{\"Running\":true}}");
+    private final AtomicInteger counter = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private int parallelism;
+
+    @After
+    public void resetParallelism() {
+        if (parallelism > 0) {
+            Docker.START_PARALLELISM = parallelism;
+        }
+    }
+
+    /**
+     * Starts a fake container, taking a while so that concurrent starts overlap.
+     */
+    private DockerContainer start() throws InterruptedException {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(50);
+            return transport.start("c" + counter.getAndIncrement());
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private static void run(DockerClassRule<?> rule, Statement test) throws Throwable {
+        rule.apply(test, Description.EMPTY).evaluate();
+    }
+
+    @Test
+    public void createsContainersInParallelAndRemovesThemTogether() throws Throwable {
+        parallelism = Docker.START_PARALLELISM;
+        Docker.START_PARALLELISM = 2;
+        DockerClassRule<DockerContainer> rule = new DockerClassRule<>(DockerContainer.class).startingWith(this::start);
+        run(rule, new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                assertThat(rule.createAll(5).size(), is(5));
+            }
+        });
+        assertThat(maxRunning.get(), is(2));
+        assertThat(transport.calls.size(), is(1));
+        List<String> removed = new ArrayList<>(List.of(transport.calls.get(0).substring("remove -f ".length()).split(" ")));
+        Collections.sort(removed);
+        assertThat(removed, is(List.of("c0", "c1", "c2", "c3", "c4")));
+
+        // the containers of the previous run are not closed again
+        run(rule, new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                rule.create();
+            }
+        });
+        assertThat(transport.calls.get(1), is("remove -f c5"));
+    }
+
+    @Test
+    public void closesContainersNobodyWaitedFor() throws Throwable {
+        CountDownLatch requested = new CountDownLatch(1);
+        DockerClassRule<DockerContainer> rule = new DockerClassRule<>(DockerContainer.class).startingWith(() -> {
+            requested.await();
+            return start();
+        });
+        run(rule, new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                CompletableFuture<DockerContainer> container = rule.createAsync();
+                requested.countDown();
+                assertThat(container.isDone(), is(false));
+            }
+        });
+        assertThat(transport.calls, is(List.of("remove -f c0")));
+    }
+
+    @Test
+    public void reportsStartFailures() throws Throwable {
+        DockerClassRule<DockerContainer> rule = new DockerClassRule<>(DockerContainer.class).startingWith(() -> {
+            if (counter.get() > 0) {
+                throw new IOException("no space left on device");
+            }
+            return start();
+        });
+        run(rule, new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                rule.create();
+                try {
+                    rule.createAll(2);
+                    fail();
+                } catch (IOException e) {
+                    assertThat(e.getMessage(), is("no space left on device"));
+                }
+                try {
+                    rule.createAsync().get();
+                    fail();
+                } catch (ExecutionException e) {
+                    assertThat(e.getCause().getMessage(), is("no space left on device"));
+                }
+            }
+        });
+        // the container which did start is removed anyway
+        assertThat(transport.calls, is(List.of("remove -f c0")));
+    }
+}
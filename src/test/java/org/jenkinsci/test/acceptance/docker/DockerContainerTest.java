@@ -0,0 +1,129 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+
+public class DockerContainerTest {
+
+    private static final String DETAILS = "{"
+            + "\"State\":{\"Status\":\"running\",\"Running\":true},"
+            + "\"NetworkSettings\":{"
+            + "\"IPAddress\":\"172.17.0.2\","
+            + "\"Networks\":{\"custom\":{\"IPAddress\":\"10.0.0.5\",\"GlobalIPv6Address\":\"fd00::5\"}},"
+            + "\"Ports\":{"
+            + "\"22/tcp\":[{\"HostIp\":\"0.0.0.0\",\"HostPort\":\"32768\"},{\"HostIp\":\"::\",\"HostPort\":\"32768\"}],"
+            + "\"53/udp\":[{\"HostIp\":\"127.0.0.1\",\"HostPort\":\"32769\"}],"
+            + "\"8080/tcp\":null}}}";
+
+    @Rule
+    public final FakeTransport transport = new FakeTransport(DETAILS);
+
+    @Test
+    public void closesOnTheAsyncExecutor() throws Exception {
+        List<Runnable> tasks = new ArrayList<>();
+        Docker.setAsyncExecutor(tasks::add);
+        DockerContainer c = transport.start("abc");
+        CompletableFuture<Void> closed = c.closeAsync();
+        assertThat(closed.isDone(), is(false));
+        assertThat(transport.calls, is(List.of()));
+        tasks.forEach(Runnable::run);
+        closed.get();
+        assertThat(transport.calls, is(List.of("kill abc", "remove abc")));
+    }
+
+    @Test
+    public void portLookupsAreServedFromTheSnapshot() throws IOException {
+        DockerContainer c = transport.start("abc");
+        try {
+            for (int i = 0; i < 50; i++) {
+                assertThat(c.port(22), is(32768));
+                assertThat(c.ipBound(22), is("0.0.0.0"));
+            }
+            assertThat(c.udpPort(53), is(32769));
+            assertThat(c.ipUdpBound(53), is("127.0.0.1"));
+            assertThat(transport.inspections.get(), is(1));
+
+            c.refresh();
+            assertThat(transport.inspections.get(), is(2));
+        } finally {
+            c.close();
+        }
+        assertThat(transport.calls, is(List.of("kill abc", "remove abc")));
+    }
+
+    @Test
+    public void portLookupsNoticeThatTheContainerStopped() throws IOException {
+        LogBuffer log = new LogBuffer(1024);
+        DockerContainer c = new DockerContainer();
+        c.init("abc", null, log, log, null);
+        try {
+            assertThat(c.port(22), is(32768));
+            transport.details = "{\"State\":{\"Status\":\"exited\",\"Running\":false}}";
+            assertThat(c.port(22), is(32768));
+            assertThat(transport.inspections.get(), is(1));
+
+            // the output of a container ends when it stops
+            log.close();
+            try {
+                c.port(22);
+                fail();
+            } catch (Error e) {
+                assertThat(e.getMessage().startsWith("The container is not running"), is(true));
+            }
+            assertThat(transport.inspections.get(), is(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void portLookupsNoticeThatTheLogProcessExited() throws Exception {
+        Process logs = new ProcessBuilder("sleep", "30").start();
+        DockerContainer c = new DockerContainer();
+        c.init("abc", logs, null);
+        try {
+            assertThat(c.port(22), is(32768));
+            assertThat(c.getIpAddress(), is("172.17.0.2"));
+            assertThat(transport.inspections.get(), is(1));
+
+            transport.details = "{\"State\":{\"Status\":\"exited\",\"Running\":false},\"NetworkSettings\":{\"IPAddress\":\"\"}}";
+            logs.destroy();
+            logs.waitFor();
+            try {
+                c.port(22);
+                fail();
+            } catch (Error e) {
+                assertThat(e.getMessage().startsWith("The container is not running"), is(true));
+            }
+            // as before, rather than failing
+            assertThat(c.getIpAddress(), is(""));
+            assertThat(transport.inspections.get(), is(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void snapshotListsPortsAndAddresses() throws IOException {
+        ContainerState state = new ContainerState(new ObjectMapper().readTree(DETAILS));
+        assertThat(state.isRunning(), is(true));
+        assertThat(state.getStatus(), is("running"));
+        assertThat(state.getPorts().keySet().toString(), is("[22/tcp, 53/udp, 8080/tcp]"));
+        assertThat(state.getPorts().get("8080/tcp").isEmpty(), is(true));
+        assertThat(state.getPortBinding(8080, "tcp", false) == null, is(true));
+        assertThat(state.getPortBinding(22, "tcp", true).toString(), is("[::]:32768"));
+        assertThat(state.getIpAddress(null, false), is("172.17.0.2"));
+        assertThat(state.getIpAddress("custom", true), is("fd00::5"));
+        assertThat(state.getIpAddress("other", false) == null, is(true));
+    }
+}
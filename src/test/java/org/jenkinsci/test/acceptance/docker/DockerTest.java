@@ -0,0 +1,126 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DockerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void buildAllBuildsSharedParentsOnceAndSiblingsConcurrently() throws Exception {
+        RecordingDocker docker = new RecordingDocker();
+        Map<Class<? extends DockerContainer>, DockerImage> images = docker.buildAll(
+                Arrays.asList(LeftContainer.class, RightContainer.class, OtherContainer.class), 2);
+
+        assertThat(images.size(), is(3));
+        assertThat(images.get(LeftContainer.class).tag, is("jenkins/left"));
+        assertThat(Collections.frequency(docker.built, BaseContainer.class), is(1));
+        assertTrue(docker.built.indexOf(BaseContainer.class) < docker.built.indexOf(LeftContainer.class));
+        assertTrue(docker.built.indexOf(BaseContainer.class) < docker.built.indexOf(RightContainer.class));
+        assertThat(docker.maxConcurrent.get() <= 2, is(true));
+    }
+
+    @Test(expected = IOException.class)
+    public void buildAllReportsFailures() throws Exception {
+        new RecordingDocker() {
+            @Override
+            public DockerImage build(Class<? extends DockerContainer> fixture) throws IOException, InterruptedException {
+                if (fixture == BaseContainer.class) {
+                    throw new IOException("broken");
+                }
+                return super.build(fixture);
+            }
+        }.buildAll(Collections.singletonList(LeftContainer.class), 2);
+    }
+
+    @Test
+    public void childFixturesAreBuiltFromTheImageOfTheirParentContext() throws IOException {
+        DockerImage parent = new DockerImage("jenkins/base:23e678bc2c56-0123456789ab");
+        byte[] dockerfile = "# based on the base fixture\nFROM --platform=linux/amd64 jenkins/base:23e678bc2c56\nRUN true\n".getBytes(StandardCharsets.UTF_8);
+        assertThat(new String(Docker.rebase(LeftContainer.class, dockerfile, parent), StandardCharsets.UTF_8),
+                is("# based on the base fixture\nFROM --platform=linux/amd64 jenkins/base:23e678bc2c56-0123456789ab\nRUN true\n"));
+        try {
+            Docker.rebase(LeftContainer.class, "FROM jenkins/base:ffffffffffff\n".getBytes(StandardCharsets.UTF_8), parent);
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("please update its FROM directive"));
+        }
+    }
+
+    @Test
+    public void layerCacheOfSameContextPreferredOverMostRecent() throws IOException {
+        File fixtureCache = folder.newFolder();
+        assertThat(Docker.findLayerCache(fixtureCache, "abc"), is(nullValue()));
+
+        File old = layerCache(fixtureCache, "old", 1000);
+        File recent = layerCache(fixtureCache, "recent", 2000);
+        assertThat(Docker.findLayerCache(fixtureCache, "abc"), is(recent));
+        assertThat(Docker.findLayerCache(fixtureCache, "old"), is(old));
+
+        Docker.pruneLayerCaches(fixtureCache, recent);
+        assertThat(old.exists(), is(false));
+        assertThat(recent.exists(), is(true));
+    }
+
+    private static File layerCache(File fixtureCache, String digest, long lastModified) throws IOException {
+        File index = new File(fixtureCache, digest + "/index.json");
+        assertTrue(index.getParentFile().mkdirs());
+        assertTrue(index.createNewFile());
+        assertTrue(index.setLastModified(lastModified));
+        return index.getParentFile();
+    }
+
+    private static class RecordingDocker extends Docker {
+        final List<Class<?>> built = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        @Override
+        public DockerImage build(Class<? extends DockerContainer> fixture) throws IOException, InterruptedException {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+                built.add(fixture);
+                return new DockerImage("jenkins/" + fixture.getAnnotation(DockerFixture.class).id());
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+
+    @DockerFixture(id = "base")
+    public static class BaseContainer extends DockerContainer {
+    }
+
+    @DockerFixture(id = "left")
+    public static class LeftContainer extends BaseContainer {
+    }
+
+    @DockerFixture(id = "right")
+    public static class RightContainer extends BaseContainer {
+    }
+
+    @DockerFixture(id = "other")
+    public static class OtherContainer extends DockerContainer {
+    }
+}
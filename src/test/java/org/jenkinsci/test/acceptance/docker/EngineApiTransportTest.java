@@ -0,0 +1,144 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.fail;
+
+public class EngineApiTransportTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File socket;
+    private ServerSocketChannel server;
+    private Thread serverThread;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        socket = new File(folder.getRoot(), "docker.sock");
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+        serverThread = new Thread(() -> {
+            try {
+                while (true) {
+                    try (SocketChannel ch = server.accept()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.US_ASCII));
+                        String request = in.readLine();
+                        while (!in.readLine().isEmpty()) {
+                            // skip headers
+                        }
+                        requests.add(request);
+                        OutputStream out = Channels.newOutputStream(ch);
+                        out.write(respond(request).getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        serverThread.start();
+    }
+
+    private static String respond(String request) {
+        switch (request) {
+        case "GET /_ping HTTP/1.1":
+            return response("200 OK", "OK");
+        case "GET /containers/abc/json HTTP/1.1":
+            // chunked, as the daemon sends larger documents
+            return "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "10\r\n{\"State\":{\"Runni\r\n"
+                    + "a;ext=1\r\nng\":true}}\r\n"
+                    + "0\r\n\r\n";
+        case "POST /containers/abc/kill HTTP/1.1":
+        case "DELETE /containers/abc?force=true HTTP/1.1":
+        case "DELETE /containers/def?force=true HTTP/1.1":
+            return "HTTP/1.1 204 No Content\r\n\r\n";
+        case "DELETE /containers/abc HTTP/1.1":
+            return response("409 Conflict", "{\"message\":\"container abc is running, stop it\"}");
+        default:
+            return response("404 Not Found", "{\"message\":\"No such thing\"}");
+        }
+    }
+
+    private static String response(String status, String body) {
+        return "HTTP/1.1 " + status + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void talksHttpOverTheUnixSocket() throws Exception {
+        EngineApiTransport api = new EngineApiTransport(UnixDomainSocketAddress.of(socket.toPath()));
+        assertThat(api.ping(), is(true));
+        assertThat(api.inspectContainer("abc").path("State").path("Running").asBoolean(), is(true));
+        assertThat(api.inspectContainer("nope"), is(nullValue()));
+        assertThat(api.inspectImage("jenkins/sshd:23e678bc2c56"), is(nullValue()));
+        api.kill("abc");
+        try {
+            api.remove("abc");
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Docker Engine API request for rm abc failed with status 409: container abc is running, stop it"));
+        }
+        assertThat(requests.get(3), is("GET /images/jenkins/sshd%3A23e678bc2c56/json HTTP/1.1"));
+    }
+
+    @Test
+    public void encodesImageReferencesInPaths() {
+        assertThat(EngineApiTransport.encode("localhost:5000/jenkins/sshd@sha256:0a1b", "/"), is("localhost%3A5000/jenkins/sshd%40sha256%3A0a1b"));
+        assertThat(EngineApiTransport.encode("a/b c", ""), is("a%2Fb%20c"));
+    }
+
+    @Test
+    public void removesContainersForciblyIgnoringMissingOnes() throws Exception {
+        EngineApiTransport api = new EngineApiTransport(UnixDomainSocketAddress.of(socket.toPath()));
+        api.removeAll(List.of("abc", "def", "gone"));
+        assertThat(requests.size(), is(3));
+    }
+
+    @Test
+    public void detectsTheEndpointOfTheDockerCommand() throws IOException {
+        File config = folder.newFolder();
+        String host = "unix://" + socket.getAbsolutePath();
+        assertThat(EngineApiTransport.detect(Collections.singletonMap("DOCKER_HOST", host), config), is(notNullValue()));
+        assertThat(EngineApiTransport.detect(Collections.singletonMap("DOCKER_HOST", "unix:///no/such.sock"), config), is(nullValue()));
+        assertThat(EngineApiTransport.detect(Map.of("DOCKER_HOST", "tcp://localhost:2376", "DOCKER_TLS_VERIFY", "1"), config), is(nullValue()));
+        assertThat(EngineApiTransport.detect(Collections.singletonMap("DOCKER_HOST", "ssh://me@host"), config), is(nullValue()));
+        assertThat(EngineApiTransport.detect(Map.of("DOCKER_HOST", host, "DOCKER_CONTEXT", "remote"), config), is(nullValue()));
+
+        // a context selected with 'docker context use' may point to another daemon than the default socket
+        FileUtils.write(new File(config, "config.json"), "{\"currentContext\":\"remote\"}", StandardCharsets.UTF_8);
+        assertThat(EngineApiTransport.detect(Collections.emptyMap(), config), is(nullValue()));
+    }
+}
@@ -0,0 +1,132 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link DockerTransport} answering every container inspection with the same details, without any Docker daemon.
+ * <p>
+ * Used as a {@link org.junit.Rule}, it is installed for each test and the containers started meanwhile are forgotten after it,
+ * so that later tests do not see them, nor does the shutdown hook try to remove them from a real daemon.
+ */
+class FakeTransport implements DockerTransport, TestRule {
+    final AtomicInteger inspections = new AtomicInteger();
+    final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    volatile String details;
+
+    FakeTransport(String details) {
+        this.details = details;
+    }
+
+    @Override
+    public Statement apply(Statement base, Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                Teardown.reset();
+                Docker.setTransport(FakeTransport.this);
+                try {
+                    base.evaluate();
+                } finally {
+                    Teardown.reset();
+                    Docker.setTransport(null);
+                    Docker.setAsyncExecutor(null);
+                }
+            }
+        };
+    }
+
+    /**
+     * Installs this transport and initializes a container as if it had just been started.
+     */
+    DockerContainer start(String cid) {
+        Docker.setTransport(this);
+        DockerContainer c = new DockerContainer();
+        c.init(cid, new IdleProcess(), null);
+        return c;
+    }
+
+    @Override
+    public boolean ping() {
+        return true;
+    }
+
+    @Override
+    public JsonNode inspectContainer(String cid) throws IOException {
+        inspections.incrementAndGet();
+        return new ObjectMapper().readTree(details);
+    }
+
+    @Override
+    public JsonNode inspectImage(String tag) {
+        return null;
+    }
+
+    @Override
+    public void kill(String cid) {
+        calls.add("kill " + cid);
+    }
+
+    @Override
+    public void remove(String cid) {
+        calls.add("remove " + cid);
+    }
+
+    @Override
+    public void removeAll(Collection<String> cids) throws IOException {
+        calls.add("remove -f " + String.join(" ", cids));
+    }
+
+    /**
+     * Stands for the {@code docker logs -f} process.
+     */
+    private static final class IdleProcess extends Process {
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return true;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
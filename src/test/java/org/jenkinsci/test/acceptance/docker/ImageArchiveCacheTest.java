@@ -0,0 +1,47 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ImageArchiveCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void evictsLeastRecentlyUsedArchives() throws IOException {
+        ImageArchiveCache cache = new ImageArchiveCache(folder.getRoot(), 250);
+        File oldest = archive(cache, "sshd", "aaa", 1000);
+        File used = archive(cache, "java", "bbb", 2000);
+        File recent = archive(cache, "git", "ccc", 3000);
+        File saved = archive(cache, "sshd", "ddd", 500);
+
+        cache.evict(saved);
+        assertThat(saved.exists(), is(true));
+        assertThat(oldest.exists(), is(false));
+        assertThat(used.exists(), is(false));
+        assertThat(recent.exists(), is(true));
+    }
+
+    @Test
+    public void archivesAreNamedAfterFixtureAndHash() {
+        ImageArchiveCache cache = new ImageArchiveCache(folder.getRoot(), 0);
+        assertThat(cache.archive("sshd", "23e678bc2c56").getName(), is("sshd-23e678bc2c56.tar"));
+        assertThat(cache.archive("acme/foo", "23e678bc2c56").getName(), is("acme_foo-23e678bc2c56.tar"));
+    }
+
+    private static File archive(ImageArchiveCache cache, String id, String hash, long lastModified) throws IOException {
+        File archive = cache.archive(id, hash);
+        Files.write(archive.toPath(), new byte[100]);
+        archive.setLastModified(lastModified);
+        return archive;
+    }
+}
@@ -0,0 +1,57 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+public class InterProcessLockTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void waitsForOwner() throws Exception {
+        File file = new File(folder.getRoot(), "locks/test.lock");
+        AtomicBoolean held = new AtomicBoolean();
+        CompletableFuture<Boolean> other;
+        try (InterProcessLock lock = InterProcessLock.acquire(file, 10_000, "test")) {
+            held.set(true);
+            other = CompletableFuture.supplyAsync(() -> {
+                try (InterProcessLock lock2 = InterProcessLock.acquire(file, 10_000, "test")) {
+                    return held.get();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            Thread.sleep(200);
+            assertThat(other.isDone(), is(false));
+            held.set(false);
+        }
+        assertThat(other.get(10, TimeUnit.SECONDS), is(false));
+        assertTrue(file.isFile());
+    }
+
+    @Test
+    public void ignoresStaleOwner() throws Exception {
+        File file = new File(folder.getRoot(), "test.lock");
+        try (InterProcessLock lock = InterProcessLock.acquire(file, 10_000, "test")) {
+            long start = System.nanoTime();
+            try (InterProcessLock lock2 = InterProcessLock.acquire(file, 100, "test")) {
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            }
+        }
+        // the lock is still usable afterwards
+        try (InterProcessLock lock = InterProcessLock.acquire(file, 100, "test")) {
+            assertTrue(file.isFile());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.apache.commons.io.IOUtils;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.jar.JarEntry;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class JarIndexTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void listsOnlyEntriesUnderPrefix() throws IOException {
+        File jar = new File(folder.getRoot(), "fixtures.jar");
+        ShrinkWrap.create(JavaArchive.class)
+                .addAsResource(new StringAsset("FROM ubuntu"), "/org/acme/FooContainer/Dockerfile")
+                .addAsResource(new StringAsset("key"), "/org/acme/FooContainer/keys/unsafe")
+                .addAsResource(new StringAsset("FROM jenkins/foo"), "/org/acme/FooContainerChild/Dockerfile")
+                .as(ZipExporter.class).exportTo(jar);
+
+        JarIndex index = JarIndex.of(jar);
+        SortedMap<String, JarEntry> entries = index.entriesUnder("org/acme/FooContainer/");
+        assertThat(entries.containsKey("org/acme/FooContainer/Dockerfile"), is(true));
+        assertThat(entries.containsKey("org/acme/FooContainer/keys/unsafe"), is(true));
+        assertThat(entries.containsKey("org/acme/FooContainerChild/Dockerfile"), is(false));
+        assertThat(JarIndex.of(jar) == index, is(true));
+    }
+
+    @Test
+    public void rebuiltWhenJarChanges() throws IOException {
+        File jar = new File(folder.getRoot(), "fixtures.jar");
+        ShrinkWrap.create(JavaArchive.class)
+                .addAsResource(new StringAsset("FROM ubuntu"), "/org/acme/FooContainer/Dockerfile")
+                .as(ZipExporter.class).exportTo(jar);
+        JarIndex index = JarIndex.of(jar);
+        assertThat(index.entriesUnder("org/acme/FooContainer/").containsKey("org/acme/FooContainer/extra"), is(false));
+
+        long lastModified = jar.lastModified();
+        jar.delete();
+        ShrinkWrap.create(JavaArchive.class)
+                .addAsResource(new StringAsset("FROM ubuntu"), "/org/acme/FooContainer/Dockerfile")
+                .addAsResource(new StringAsset("extra"), "/org/acme/FooContainer/extra")
+                .as(ZipExporter.class).exportTo(jar);
+        jar.setLastModified(lastModified + 2000);
+        assertThat(JarIndex.of(jar).entriesUnder("org/acme/FooContainer/").containsKey("org/acme/FooContainer/extra"), is(true));
+    }
+
+    @Test
+    public void contextsStayReadableWhenTheJarIsReindexed() throws IOException {
+        File jar = new File(folder.getRoot(), "fixtures.jar");
+        ShrinkWrap.create(JavaArchive.class)
+                .addAsResource(new StringAsset("FROM ubuntu"), "/org/acme/FooContainer/Dockerfile")
+                .as(ZipExporter.class).exportTo(jar);
+        try (BuildContext context = new BuildContext.Packaged(jar, "org/acme/FooContainer/")) {
+            List<BuildContext.Entry> entries = context.entries();
+
+            // another thread finds the jar changed in the meantime
+            jar.setLastModified(jar.lastModified() + 2000);
+            JarIndex.of(jar);
+
+            try (InputStream in = entries.get(0).open()) {
+                assertThat(IOUtils.toString(in, StandardCharsets.UTF_8), is("FROM ubuntu"));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogBufferTest {
+
+    private static void write(LogBuffer buffer, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        buffer.write(b, 0, b.length);
+    }
+
+    @Test
+    public void keepsTheLastLines() {
+        LogBuffer buffer = new LogBuffer(12);
+        write(buffer, "first\nsecond\r\nthi");
+        write(buffer, "rd\nfourth");
+        assertThat(buffer.tail(), is("third\nfourth"));
+        buffer.close();
+        assertThat(buffer.tail(), is("fourth\n"));
+    }
+
+    @Test
+    public void matchesLinesAlreadyOutput() throws Exception {
+        LogBuffer buffer = new LogBuffer(1024);
+        write(buffer, "Starting\nJenkins is fully up and running\n");
+        assertThat(buffer.waitFor(Pattern.compile("fully up"), Duration.ofMillis(1)), is("Jenkins is fully up and running"));
+    }
+
+    @Test
+    public void wakesUpOnMatchingLine() throws Exception {
+        LogBuffer buffer = new LogBuffer(1024);
+        Thread container = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            write(buffer, "Server listening on port 22\n");
+        });
+        container.start();
+        long start = System.nanoTime();
+        assertThat(buffer.waitFor(Pattern.compile("listening on port (\\d+)"), Duration.ofMinutes(1)), is("Server listening on port 22"));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toSeconds() < 30);
+        container.join();
+    }
+
+    @Test
+    public void failsWhenTheLogEnds() throws Exception {
+        LogBuffer buffer = new LogBuffer(1024);
+        Thread container = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            write(buffer, "Segmentation fault\n");
+            buffer.close();
+        });
+        container.start();
+        try {
+            buffer.waitFor(Pattern.compile("started"), Duration.ofMinutes(1));
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("The log ended"));
+        }
+        container.join();
+        try {
+            buffer.waitFor(Pattern.compile("started"), Duration.ofMillis(1));
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("The log ended"));
+        }
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        try {
+            new LogBuffer(1024).waitFor(Pattern.compile("started"), Duration.ofMillis(50));
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("No line matching started after 50ms"));
+        }
+    }
+}
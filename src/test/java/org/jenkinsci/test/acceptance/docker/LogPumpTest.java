@@ -0,0 +1,224 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogPumpTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] frame(int stream, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(8 + bytes.length);
+        b.put((byte) stream).put(new byte[3]).putInt(bytes.length).put(bytes);
+        return b.array();
+    }
+
+    private static byte[] chunked(byte[]... chunks) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("HTTP/1.1 200 OK\r\nContent-Type: application/vnd.docker.multiplexed-stream\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (byte[] chunk : chunks) {
+            out.write((Integer.toHexString(chunk.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(chunk);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    /**
+     * Feeds a response to a decoder a few bytes at a time, as they may arrive from the socket.
+     */
+    private static String decode(byte[] response, int step) throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        LogPump.Decoder decoder = new LogPump.Decoder("abc", sink);
+        boolean more = true;
+        for (int i = 0; i < response.length && more; i += step) {
+            more = decoder.feed(ByteBuffer.wrap(response, i, Math.min(step, response.length - i)).slice());
+        }
+        decoder.finish();
+        return sink.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void stripsFrameHeadersAcrossChunks() throws Exception {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(frame(1, "Starting sshd\n"));
+        frames.write(frame(2, "warning: no host keys\n"));
+        byte[] all = frames.toByteArray();
+        byte[] response = chunked(Arrays.copyOfRange(all, 0, 11), Arrays.copyOfRange(all, 11, all.length));
+        for (int step : new int[] {1, 3, 7, response.length}) {
+            assertThat(decode(response, step), is("Starting sshd\nwarning: no host keys\n"));
+        }
+    }
+
+    @Test
+    public void copiesTheOutputOfContainersWithTtyAsIs() throws Exception {
+        byte[] response = chunked("Welcome to the container\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(decode(response, 5), is("Welcome to the container\n"));
+        assertThat(decode(chunked("ok\n".getBytes(StandardCharsets.UTF_8)), 2), is("ok\n"));
+    }
+
+    @Test
+    public void followsLogsOverTheSocketUntilTheContainerStops() throws Exception {
+        File socket = new File(folder.getRoot(), "docker.sock");
+        File log = folder.newFile("run.log");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            Thread daemon = new Thread(() -> {
+                try (SocketChannel ch = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.US_ASCII));
+                    while (!in.readLine().isEmpty()) {
+                        // skip the request
+                    }
+                    OutputStream out = Channels.newOutputStream(ch);
+                    out.write(chunked(frame(1, "line 1\n")));
+                    out.flush();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            daemon.start();
+            EngineApiTransport api = new EngineApiTransport(UnixDomainSocketAddress.of(socket.toPath()));
+            api.followLogs("abc", new FileOutputStream(log));
+            daemon.join();
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (!Files.readString(log.toPath()).equals("line 1\n")) {
+                assertTrue("timed out", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Answers a logs request on the next connection to the socket, from a thread of its own.
+     */
+    private static void serve(ServerSocketChannel server, byte[] response) throws IOException {
+        SocketChannel ch = server.accept();
+        new Thread(() -> {
+            try (SocketChannel c = ch) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(c), StandardCharsets.US_ASCII));
+                while (!in.readLine().isEmpty()) {
+                    // skip the request
+                }
+                OutputStream out = Channels.newOutputStream(c);
+                out.write(response);
+                out.flush();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }).start();
+    }
+
+    @Test
+    public void aSlowSinkOnlyHoldsBackItsOwnContainer() throws Exception {
+        File socket = new File(folder.getRoot(), "docker.sock");
+        byte[] block = new byte[64 * 1024];
+        Arrays.fill(block, (byte) 'x');
+        byte[][] blocks = new byte[3 * LogPump.MAX_PENDING / block.length][];
+        Arrays.fill(blocks, block);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch slowClosed = new CountDownLatch(1);
+        CountDownLatch fastClosed = new CountDownLatch(1);
+        ByteArrayOutputStream slow = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                super.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                slowClosed.countDown();
+            }
+        };
+        ByteArrayOutputStream fast = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                fastClosed.countDown();
+            }
+        };
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            EngineApiTransport api = new EngineApiTransport(UnixDomainSocketAddress.of(socket.toPath()));
+            Thread daemon = new Thread(() -> {
+                try {
+                    serve(server, chunked(blocks));
+                    serve(server, chunked(frame(1, "line 1\n")));
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            daemon.start();
+            api.followLogs("slow", slow);
+            api.followLogs("fast", fast);
+            daemon.join();
+            assertTrue("fast logs closed", fastClosed.await(10, TimeUnit.SECONDS));
+            assertThat(fast.toString(StandardCharsets.UTF_8), is("line 1\n"));
+            assertThat(slowClosed.getCount(), is(1L));
+            release.countDown();
+            assertTrue("slow logs closed", slowClosed.await(10, TimeUnit.SECONDS));
+            assertThat(slow.size(), is(blocks.length * block.length));
+        }
+    }
+
+    @Test
+    public void closesTheLogsOfAFailedPumpAndStartsAnother() throws Exception {
+        File socket = new File(folder.getRoot(), "docker.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             SocketChannel client = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            client.connect(UnixDomainSocketAddress.of(socket.toPath()));
+            CountDownLatch closed = new CountDownLatch(1);
+            OutputStream sink = new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            };
+            LogPump pump = LogPump.get();
+            pump.follow(client, "abc", sink);
+            pump.selector.close();
+            assertTrue("logs closed", closed.await(10, TimeUnit.SECONDS));
+            try {
+                pump.follow(SocketChannel.open(StandardProtocolFamily.UNIX), "def", new ByteArrayOutputStream());
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            assertNotEquals(pump, LogPump.get());
+        }
+    }
+}
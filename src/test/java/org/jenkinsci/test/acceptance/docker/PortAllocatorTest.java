@@ -0,0 +1,97 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PortAllocatorTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDir;
+
+    @Before
+    public void useTemporaryCache() {
+        cacheDir = Docker.CACHE_DIR;
+        Docker.CACHE_DIR = folder.getRoot();
+    }
+
+    @After
+    public void restoreCache() {
+        Docker.CACHE_DIR = cacheDir;
+    }
+
+    @Test
+    public void allocatesOffsetsNotOverlappingHeldPorts() throws Exception {
+        int[] ports = {22, 8080};
+        try (PortAllocator.Lease first = PortAllocator.allocate(ports, new int[0]);
+             PortAllocator.Lease second = PortAllocator.allocate(ports, new int[0])) {
+            assertNotEquals(first.offset(), second.offset());
+            for (int p : ports) {
+                assertTrue(first.offset() + p >= Docker.MIN_ALLOCATED_PORT && first.offset() + p <= Docker.MAX_ALLOCATED_PORT);
+                for (int q : ports) {
+                    assertNotEquals(first.offset() + q, second.offset() + p);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void waitsForFixedPortsToBeReleased() throws Exception {
+        try (PortAllocator.Lease held = PortAllocator.reserve(1000, new int[] {80}, new int[] {53}, Duration.ofSeconds(1))) {
+            try {
+                PortAllocator.reserve(1000, new int[] {80}, new int[0], Duration.ofMillis(200));
+                fail();
+            } catch (IOException e) {
+                assertThat(e.getMessage(), is("Host ports tcp-1080 are still used by another container after 200ms"));
+            }
+            // same port number, other protocol
+            PortAllocator.reserve(1000, new int[] {53}, new int[0], Duration.ofMillis(200)).close();
+
+            Docker.supplyAsync(() -> {
+                Thread.sleep(200);
+                held.close();
+                return null;
+            });
+            try (PortAllocator.Lease next = PortAllocator.reserve(1000, new int[] {80}, new int[0], Duration.ofSeconds(10))) {
+                assertThat(next.offset(), is(1000));
+            }
+        }
+    }
+
+    @Test
+    public void skipsPortsLockedElsewhere() throws Exception {
+        File lockFile = new File(folder.getRoot(), "ports/tcp-1080.lock");
+        lockFile.getParentFile().mkdirs();
+        try (FileChannel other = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            other.lock();
+            try {
+                PortAllocator.reserve(1000, new int[] {80}, new int[0], Duration.ofMillis(200));
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        PortAllocator.reserve(1000, new int[] {80}, new int[0], Duration.ofMillis(200)).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesPortsSpanningMoreThanTheRange() throws Exception {
+        PortAllocator.allocate(new int[] {22, 40000}, new int[0]);
+    }
+}
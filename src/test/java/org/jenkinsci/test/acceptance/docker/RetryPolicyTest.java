@@ -0,0 +1,43 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retriesTransientFailuresUntilAttemptsRunOut() throws Exception {
+        RetryPolicy retry = new RetryPolicy("docker run", 3, 1);
+        String failure = "docker: Error response from daemon: driver failed programming external connectivity on endpoint x: "
+                + "Bind for 0.0.0.0:8080 failed: port is already allocated.";
+        assertThat(retry.retry(failure), is(true));
+        assertThat(retry.retry("Get \"https://registry-1.docker.io/v2/\": context deadline exceeded"), is(true));
+        assertThat(retry.retry(failure), is(false));
+    }
+
+    @Test
+    public void givesUpOnOtherFailures() throws Exception {
+        RetryPolicy retry = new RetryPolicy("docker run", 3, 1);
+        assertThat(retry.retry("Unable to find image 'jenkins/nope:1' locally"), is(false));
+        assertThat(retry.retry(null), is(false));
+    }
+
+    @Test
+    public void readsWhatWasAppendedToTheLog() throws Exception {
+        File log = File.createTempFile("build", ".log");
+        try {
+            Files.write(log.toPath(), "first attempt\n".getBytes(StandardCharsets.UTF_8));
+            long start = log.length();
+            Files.write(log.toPath(), "first attempt\nTLS handshake timeout\n".getBytes(StandardCharsets.UTF_8));
+            assertThat(Docker.readFrom(log, start), is("TLS handshake timeout\n"));
+        } finally {
+            log.delete();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedContainersTest {
+
+    private final AtomicInteger starts = new AtomicInteger();
+
+    @After
+    public void resetLinger() {
+        Docker.SHARED_CONTAINER_LINGER = -1;
+    }
+
+    private TrackedContainer start() {
+        starts.incrementAndGet();
+        return new TrackedContainer();
+    }
+
+    @Test
+    public void sharesOneContainerAndResetsItForEachNewUser() throws Exception {
+        DockerImage image = new DockerImage("jenkins/shared:1");
+        TrackedContainer first = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        TrackedContainer concurrent = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        assertTrue(first == concurrent);
+        // not reset while someone uses it
+        assertThat(first.resets, is(0));
+        SharedContainers.release(first);
+        SharedContainers.release(concurrent);
+        assertThat(first.closed.get(), is(false));
+
+        TrackedContainer next = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        assertTrue(first == next);
+        assertThat(next.resets, is(1));
+        assertThat(starts.get(), is(1));
+        SharedContainers.release(next);
+
+        TrackedContainer otherImage = SharedContainers.acquire(TrackedContainer.class, new DockerImage("jenkins/shared:2"), this::start);
+        assertTrue(first != otherImage);
+        SharedContainers.release(otherImage);
+    }
+
+    @Test
+    public void closedOnLastReleaseWithoutLinger() throws Exception {
+        Docker.SHARED_CONTAINER_LINGER = 0;
+        DockerImage image = new DockerImage("jenkins/shared:3");
+        TrackedContainer first = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        SharedContainers.release(first);
+        assertThat(first.closed.get(), is(true));
+
+        TrackedContainer next = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        assertTrue(first != next);
+        assertThat(next.resets, is(0));
+        SharedContainers.release(next);
+    }
+
+    @Test
+    public void replacedWhenResetFails() throws Exception {
+        DockerImage image = new DockerImage("jenkins/shared:4");
+        TrackedContainer first = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        first.failReset = true;
+        SharedContainers.release(first);
+
+        TrackedContainer next = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        assertTrue(first != next);
+        assertThat(first.closed.get(), is(true));
+        assertThat(starts.get(), is(2));
+        SharedContainers.release(next);
+    }
+
+    @Test
+    public void concurrentUsersWaitForTheFirstStartWithoutHoldingTheEntry() throws Exception {
+        DockerImage image = new DockerImage("jenkins/shared:5");
+        CountDownLatch starting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<TrackedContainer> first = Docker.supplyAsync(() -> SharedContainers.acquire(TrackedContainer.class, image, () -> {
+            starting.countDown();
+            release.await();
+            return start();
+        }));
+        starting.await();
+        CompletableFuture<TrackedContainer> second = Docker.supplyAsync(() -> SharedContainers.acquire(TrackedContainer.class, image, this::start));
+        Thread.sleep(100);
+        assertThat(second.isDone(), is(false));
+        release.countDown();
+        assertTrue(first.get() == second.get());
+        assertThat(starts.get(), is(1));
+        SharedContainers.release(first.get());
+        SharedContainers.release(second.get());
+    }
+
+    @Test
+    public void concurrentUsersSeeTheStartFailure() throws Exception {
+        DockerImage image = new DockerImage("jenkins/shared:6");
+        CountDownLatch starting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<TrackedContainer> first = Docker.supplyAsync(() -> SharedContainers.acquire(TrackedContainer.class, image, () -> {
+            starting.countDown();
+            release.await();
+            throw new IOException("no such image");
+        }));
+        starting.await();
+        CompletableFuture<TrackedContainer> second = Docker.supplyAsync(() -> SharedContainers.acquire(TrackedContainer.class, image, this::start));
+        Thread.sleep(100);
+        release.countDown();
+        for (CompletableFuture<TrackedContainer> f : List.of(first, second)) {
+            try {
+                f.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertThat(e.getCause() instanceof IOException, is(true));
+            }
+        }
+        // the next user starts it again
+        TrackedContainer next = SharedContainers.acquire(TrackedContainer.class, image, this::start);
+        assertThat(starts.get(), is(1));
+        SharedContainers.release(next);
+    }
+}
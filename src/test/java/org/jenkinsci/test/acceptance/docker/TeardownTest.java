@@ -0,0 +1,94 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+
+public class TeardownTest {
+
+    @Rule
+    public final FakeTransport transport = new FakeTransport("{\"State\":{\"Running\":true}}");
+
+    @After
+    public void resetTeardown() {
+        Docker.ASYNC_TEARDOWN = false;
+    }
+
+    @Test
+    public void removesContainersAtOnce() {
+        DockerContainer a = transport.start("a");
+        DockerContainer b = transport.start("b");
+        TrackedContainer c = new TrackedContainer();
+        DockerContainer.closeAll(List.of(a, b, c));
+        assertThat(transport.calls, is(List.of("remove -f a b")));
+        assertThat(c.closed.get(), is(true));
+
+        // already closed
+        DockerContainer.closeAll(List.of(a, b));
+        a.close();
+        assertThat(transport.calls.size(), is(1));
+    }
+
+    @Test
+    public void removesContainersInTheBackground() {
+        Docker.ASYNC_TEARDOWN = true;
+        DockerContainer a = transport.start("a");
+        DockerContainer.closeAll(List.of(a));
+        Teardown.awaitPending();
+        assertThat(transport.calls, is(List.of("remove -f a")));
+    }
+
+    @Test
+    public void removesLeftoversInBatches() {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < Teardown.BATCH_SIZE + 1; i++) {
+            transport.start("c" + i);
+            expected.add("c" + i);
+        }
+        List<String> removed = Teardown.removeLeftovers();
+        Collections.sort(removed);
+        Collections.sort(expected);
+        assertThat(removed, is(expected));
+        assertThat(transport.calls.size(), is(2));
+        assertThat(Teardown.removeLeftovers(), is(List.of()));
+    }
+
+    @Test
+    public void removesContainersWhoseRemovalFailedWhenTheJvmExits() {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        FakeTransport flaky = new FakeTransport("{\"State\":{\"Running\":true}}") {
+            @Override
+            public void removeAll(Collection<String> cids) throws IOException {
+                super.removeAll(cids);
+                if (failing.getAndSet(false)) {
+                    throw new IOException("Error response from daemon: removal of container is already in progress");
+                }
+            }
+        };
+        DockerContainer a = flaky.start("a");
+        try {
+            DockerContainer.closeAll(List.of(a));
+            fail();
+        } catch (AssertionError e) {
+            // expected
+        }
+        // closed as far as the test is concerned
+        DockerContainer.closeAll(List.of(a));
+        assertThat(flaky.calls, is(List.of("remove -f a")));
+
+        assertThat(Teardown.removeLeftovers(), is(List.of("a")));
+        assertThat(flaky.calls, is(List.of("remove -f a", "remove -f a")));
+        assertThat(Teardown.removeLeftovers(), is(List.of()));
+    }
+}
@@ -0,0 +1,34 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Container which is never actually started, recording what is done with it.
+ */
+final class TrackedContainer extends DockerContainer {
+    final AtomicBoolean closed = new AtomicBoolean();
+    volatile boolean running = true;
+    volatile int resets;
+    volatile boolean failReset;
+
+    @Override
+    public void assertRunning() {
+        if (!running) {
+            throw new Error("The container is not running");
+        }
+    }
+
+    @Override
+    protected void reset() throws IOException {
+        if (failReset) {
+            throw new IOException("cannot truncate");
+        }
+        resets++;
+    }
+
+    @Override
+    public void close() {
+        closed.set(true);
+    }
+}
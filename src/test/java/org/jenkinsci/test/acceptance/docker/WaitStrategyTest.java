@@ -0,0 +1,142 @@
+package org.jenkinsci.test.acceptance.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WaitStrategyTest {
+
+    @Rule
+    public final FakeTransport transport = new FakeTransport(details(true, 1));
+
+    private static String details(boolean running, int hostPort) {
+        return "{\"State\":{\"Running\":" + running + "},"
+                + "\"NetworkSettings\":{\"Ports\":{\"80/tcp\":[{\"HostIp\":\"127.0.0.1\",\"HostPort\":\"" + hostPort + "\"}]}}}";
+    }
+
+    @Test
+    public void portIsReadyOnceSomethingListens() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            transport.details = details(true, server.getLocalPort());
+            DockerContainer c = transport.start("abc");
+            assertThat(WaitStrategy.forPort(80).isReady(c), is(true));
+        }
+    }
+
+    @Test
+    public void portClosedRightAwayIsNotReady() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            // as the Docker proxy does when nothing listens in the container
+            Thread proxy = new Thread(() -> {
+                try (Socket s = server.accept()) {
+                    // close
+                } catch (IOException e) {
+                    // ignore
+                }
+            });
+            proxy.start();
+            transport.details = details(true, server.getLocalPort());
+            DockerContainer c = transport.start("abc");
+            assertThat(WaitStrategy.forPort(80).isReady(c), is(false));
+            proxy.join();
+        }
+    }
+
+    @Test
+    public void timesOutWhenNothingListens() throws Exception {
+        int port;
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = server.getLocalPort();
+        }
+        transport.details = details(true, port);
+        DockerContainer c = transport.start("abc");
+        long start = System.nanoTime();
+        try {
+            WaitStrategy.forPort(80).waitUntilReady(c, Duration.ofMillis(300));
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("was not ready after 300ms waiting for port 80"));
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 5000);
+    }
+
+    @Test
+    public void failsFastWhenTheContainerStops() throws Exception {
+        DockerContainer c = transport.start("abc");
+        transport.details = details(false, 1);
+        try {
+            new WaitStrategy() {
+                @Override
+                public boolean isReady(DockerContainer container) {
+                    return false;
+                }
+            }.waitUntilReady(c, Duration.ofMinutes(1));
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("stopped"));
+        }
+    }
+
+    @Test
+    public void healthcheckInspectsOncePerPoll() throws Exception {
+        FakeTransport healthchecked = new FakeTransport("{\"State\":{\"Running\":true,\"Health\":{\"Status\":\"starting\"}}}") {
+            @Override
+            public JsonNode inspectContainer(String cid) throws IOException {
+                if (inspections.get() == 3) {
+                    details = "{\"State\":{\"Running\":true,\"Health\":{\"Status\":\"healthy\"}}}";
+                }
+                return super.inspectContainer(cid);
+            }
+        };
+        DockerContainer c = healthchecked.start("abc");
+        WaitStrategy.forHealthcheck().waitUntilReady(c, Duration.ofMinutes(1));
+        // one when started, then one per poll: starting, starting, healthy
+        assertThat(healthchecked.inspections.get(), is(4));
+    }
+
+    @Test
+    public void httpWaitsForAcceptableStatus() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/login", exchange -> {
+            exchange.sendResponseHeaders(requests.incrementAndGet() < 3 ? 503 : 200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            transport.details = details(true, server.getAddress().getPort());
+            DockerContainer c = transport.start("abc");
+            WaitStrategy.forHttp(80, "/login").waitUntilReady(c, Duration.ofSeconds(30));
+            assertThat(requests.get(), is(3));
+            assertThat(WaitStrategy.forHttp(80, "/login", 503).isReady(c), is(false));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void backoffGrowsWithJitterUpToTheMaximum() {
+        Backoff backoff = new Backoff(100, 400);
+        long[] bounds = {100, 200, 400, 400, 400};
+        for (long bound : bounds) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay + " within " + bound, delay >= bound / 2 && delay <= bound);
+        }
+    }
+}